@@ -0,0 +1,180 @@
+package org.jickr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookup tables of a PhotoCollection tree, shared by all its collections.
+ * This is an implementation class, not intended for general use.
+ *
+ * Sets and collections are indexed by title and by ID once, when the tree is
+ * built, and every set or collection added through the tree is indexed as it
+ * is added.  A title can match several sets, and a set can belong to several
+ * collections: a lookup from a collection returns the first match in its own
+ * subtree, in the order the tree was walked.
+ *
+ * Sets can be renamed after they were indexed.  A set is only returned for a
+ * title it still has, and a lookup by title that finds nothing indexes the
+ * sets again under their current titles before giving up.
+ */
+final class CollectionIndex {
+
+	// A set in a collection
+	private static final class Placement {
+		final PhotoSet set;
+		final PhotoCollection owner;
+		// Title the set is indexed under
+		String title;
+
+		Placement(PhotoSet set, PhotoCollection owner) {
+			this.set = set;
+			this.owner = owner;
+			this.title = set.getTitle();
+		}
+	}
+
+	private final Map<String,List<Placement>> setsByTitle = new HashMap<String,List<Placement>>();
+	private final Map<String,List<Placement>> setsByID = new HashMap<String,List<Placement>>();
+	private final Map<String,List<PhotoCollection>> collectionsByTitle = new HashMap<String,List<PhotoCollection>>();
+	private final Map<String,PhotoCollection> collectionsByID = new HashMap<String,PhotoCollection>();
+
+	/**
+	 * Index a collection, its sets and its sub-collections.
+	 */
+	synchronized void addTree(PhotoCollection collection) {
+		addCollection(collection);
+		for (PhotoSet set : collection.getPhotosets()) {
+			addSet(set, collection);
+		}
+		for (PhotoCollection sub : collection.getSubCollections()) {
+			addTree(sub);
+		}
+	}
+
+	/**
+	 * Index a collection, without its content.
+	 */
+	synchronized void addCollection(PhotoCollection collection) {
+		if (collection.getId() != null) collectionsByID.put(collection.getId(), collection);
+		if (collection.getTitle() != null) add(collectionsByTitle, collection.getTitle(), collection);
+	}
+
+	/**
+	 * Index a set of a collection.
+	 */
+	synchronized void addSet(PhotoSet set, PhotoCollection owner) {
+		Placement placement = new Placement(set, owner);
+		if (set.getID() != null) add(setsByID, set.getID(), placement);
+		if (placement.title != null) add(setsByTitle, placement.title, placement);
+	}
+
+	/**
+	 * Find a set by title in a subtree.
+	 * @return the first set found, null if none
+	 */
+	synchronized PhotoSet findSetByTitle(String title, PhotoCollection root) {
+		PhotoSet set = findSetWithTitle(title, root);
+		if (set == null && reindexTitles()) set = findSetWithTitle(title, root);
+		return set;
+	}
+
+	/**
+	 * Find a set by ID in a subtree.
+	 * @return the set, null if none
+	 */
+	synchronized PhotoSet findSetByID(String id, PhotoCollection root) {
+		return findSet(setsByID.get(id), root);
+	}
+
+	/**
+	 * Whether a set belongs directly to a collection.
+	 */
+	synchronized boolean containsSet(String id, PhotoCollection owner) {
+		List<Placement> placements = setsByID.get(id);
+		if (placements == null) return false;
+		for (Placement placement : placements) {
+			if (placement.owner == owner) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Find a collection by title in a subtree.
+	 * @return the first collection found, null if none
+	 */
+	synchronized PhotoCollection findCollectionByTitle(String title, PhotoCollection root) {
+		List<PhotoCollection> collections = collectionsByTitle.get(title);
+		if (collections == null) return null;
+		for (PhotoCollection collection : collections) {
+			if (isWithin(collection, root)) return collection;
+		}
+		return null;
+	}
+
+	/**
+	 * Find a collection by ID in a subtree.
+	 * @return the collection, null if none
+	 */
+	synchronized PhotoCollection findCollectionByID(String id, PhotoCollection root) {
+		PhotoCollection collection = collectionsByID.get(id);
+		return collection != null && isWithin(collection, root) ? collection : null;
+	}
+
+	// Only sets still having the title
+	private PhotoSet findSetWithTitle(String title, PhotoCollection root) {
+		List<Placement> placements = setsByTitle.get(title);
+		if (placements == null) return null;
+		for (Placement placement : placements) {
+			if (title.equals(placement.set.getTitle()) && isWithin(placement.owner, root)) return placement.set;
+		}
+		return null;
+	}
+
+	// Index the renamed sets under their current title
+	// @return whether any set was renamed
+	private boolean reindexTitles() {
+		boolean renamed = false;
+		for (List<Placement> placements : setsByID.values()) {
+			for (Placement placement : placements) {
+				String title = placement.set.getTitle();
+				if (title == null ? placement.title == null : title.equals(placement.title)) continue;
+				if (placement.title != null) {
+					List<Placement> old = setsByTitle.get(placement.title);
+					old.remove(placement);
+					if (old.isEmpty()) setsByTitle.remove(placement.title);
+				}
+				placement.title = title;
+				if (title != null) add(setsByTitle, title, placement);
+				renamed = true;
+			}
+		}
+		return renamed;
+	}
+
+	private static PhotoSet findSet(List<Placement> placements, PhotoCollection root) {
+		if (placements == null) return null;
+		for (Placement placement : placements) {
+			if (isWithin(placement.owner, root)) return placement.set;
+		}
+		return null;
+	}
+
+	// Whether a collection is the root or one of its descendants
+	private static boolean isWithin(PhotoCollection collection, PhotoCollection root) {
+		for (PhotoCollection c = collection; c != null; c = c.getParent()) {
+			if (c == root) return true;
+		}
+		return false;
+	}
+
+	private static <T> void add(Map<String,List<T>> map, String key, T value) {
+		List<T> values = map.get(key);
+		if (values == null) {
+			values = new ArrayList<T>(1);
+			map.put(key, values);
+		}
+		values.add(value);
+	}
+}
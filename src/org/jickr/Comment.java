@@ -28,6 +28,8 @@ public class Comment {
     enum Type {PHOTOCOMMENT, PHOTOSETCOMMENT}
     
     private final Type type;
+    // ID of the photo or set commented
+    private final String parentId;
     private boolean deleted = false;
     
     private String id;
@@ -36,9 +38,10 @@ public class Comment {
     private String commentText;
     
     /** Creates a new instance of Comment */
-    Comment(Type type, Element comment) throws FlickrException {
+    Comment(Type type, String parentId, Element comment) throws FlickrException {
         if (comment == null) throw new FlickrRuntimeException("Comment must not be null");
         this.type = type;
+        this.parentId = parentId;
         id = comment.getAttributeValue("id");
         author = User.findByNSID(comment.getAttributeValue("author"));
         link = comment.getAttributeValue("permalink");
@@ -102,6 +105,8 @@ public class Comment {
         req.setParameter("comment_text",commentText);
         // There's no return except for status
         req.getResponse();
+        changed();
+        this.commentText = commentText;
     }
     
     /**
@@ -124,5 +129,22 @@ public class Comment {
         // There's no return except for status
         req.getResponse();
         deleted = true;
+        changed();
+        if (type == Type.PHOTOCOMMENT) {
+            Photo photo = PhotoIdentityMap.get(parentId);
+            if (photo != null) photo.commentsChanged(-1);
+        }
+    }
+    
+    // Evict the cached comments of the photo or set
+    private void changed() {
+        switch (type) {
+            case PHOTOCOMMENT:
+                ReadCache.changed(ReadCache.photoComments(parentId));
+                break;
+            case PHOTOSETCOMMENT:
+                ReadCache.changed(ReadCache.setComments(parentId));
+                break;
+        }
     }
 }
@@ -0,0 +1,291 @@
+package org.jickr;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.jdom.Element;
+
+/**
+ * A list of Photos stored in columns instead of Photo objects, for lists of
+ * millions of photos.  This is an implementation class, exposed as List&lt;Photo&gt;.
+ *
+ * Each photo costs 21 bytes: the numeric ID in a long, the 10 hex digit
+ * secret packed into 5 bytes, the server in an int and the index of the title
+ * in a pool shared by identical titles.  Each distinct title then costs its
+ * UTF-8 bytes and an int offset in the pool.  While the list is filled, a hash
+ * table finds identical titles; it is released by trimToSize, once the list
+ * is loaded.  Photos whose values don't fit these columns are kept aside as
+ * strings.
+ *
+ * Photo objects are only created by get(i), and are the canonical Photos of
+ * PhotoIdentityMap: while a Photo is in use, every get of its ID returns it
+ * with whatever it already loaded, and once dropped it costs nothing more.
+ * The list is filled once and is read-only afterwards.
+ */
+final class CompactPhotoList extends AbstractList<Photo> implements RandomAccess {
+
+	// Bytes of a packed secret: two hex digits per byte
+	private static final int secretBytes = 5;
+	private static final int noTitle = -1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private long[] ids;
+	private byte[] secrets;
+	private int[] servers;
+	private int[] titles;
+	private int size = 0;
+
+	// Title pool: title i is titleBytes[titleOffsets[i]..titleOffsets[i+1]]
+	private byte[] titleBytes = new byte[256];
+	private int[] titleOffsets = new int[17];
+	private int titleCount = 0;
+	// Pooled titles, only while the list is filled
+	private Map<String,Integer> titleIndex = new HashMap<String,Integer>();
+
+	// Rows not fitting the columns, as {id, secret, server}
+	private final Map<Integer,String[]> irregular = new HashMap<Integer,String[]>();
+
+	/**
+	 * Creates an empty list.
+	 * @param capacity expected number of photos
+	 */
+	CompactPhotoList(int capacity) {
+		capacity = Math.max(capacity, 16);
+		ids = new long[capacity];
+		secrets = new byte[capacity * secretBytes];
+		servers = new int[capacity];
+		titles = new int[capacity];
+	}
+
+	/**
+	 * Creates the list of all the pages of a photo list request.
+	 * @param req the list request
+	 * @param maxPages maximum number of pages to fetch, 0 for all
+	 */
+	CompactPhotoList(Request req, int maxPages) throws FlickrException {
+		this(500);
+		if (req.getParameter("per_page") == null) req.setParameter("per_page","500");
+		List<Element> photos = new ArrayList<Element>();
+		int pages;
+		int page = 0;
+		do {
+			page++;
+			photos.clear();
+			pages = PhotoList.fetchPage(req, page, photos);
+			if (maxPages != 0 && maxPages < pages) pages = maxPages;
+			for (Element photo : photos) {
+				add(photo);
+			}
+		} while (page < pages);
+		trimToSize();
+	}
+
+	public Photo get(int index) {
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		String id = getID(index);
+		Photo photo = PhotoIdentityMap.get(id);
+		if (photo != null) return photo;
+		return PhotoIdentityMap.intern(new Photo(id, getSecret(index), getServer(index), getTitle(index)));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the ID of a photo without creating the Photo.
+	 * @param index position in the list
+	 * @return the photo ID
+	 */
+	String getID(int index) {
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		if (ids[index] < 0) return irregular.get(index)[0];
+		return Long.toString(ids[index]);
+	}
+
+	/**
+	 * Get the ID of a photo as a number, without creating any object.
+	 * @param index position in the list
+	 * @return the numeric ID, -1 if the ID isn't a number
+	 */
+	long getNumericID(int index) {
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		return ids[index];
+	}
+
+	String getSecret(int index) {
+		if (ids[index] < 0) return irregular.get(index)[1];
+		return unpackSecret(index);
+	}
+
+	String getServer(int index) {
+		if (ids[index] < 0) return irregular.get(index)[2];
+		return servers[index] < 0 ? null : Integer.toString(servers[index]);
+	}
+
+	String getTitle(int index) {
+		int title = titles[index];
+		if (title == noTitle) return null;
+		int start = titleOffsets[title];
+		return new String(titleBytes, start, titleOffsets[title + 1] - start, UTF8);
+	}
+
+	/**
+	 * Get a photo as the element of a list response, without creating the Photo.
+	 */
+	Element toElement(int index) {
+		Element photo = new Element("photo");
+		photo.setAttribute("id", getID(index));
+		String secret = getSecret(index);
+		if (secret != null) photo.setAttribute("secret", secret);
+		String server = getServer(index);
+		if (server != null) photo.setAttribute("server", server);
+		String title = getTitle(index);
+		if (title != null) photo.setAttribute("title", title);
+		return photo;
+	}
+
+	/**
+	 * Append a photo of another list.
+	 */
+	void add(CompactPhotoList other, int index) {
+		add(other.getID(index), other.getSecret(index), other.getServer(index), other.getTitle(index));
+	}
+
+	/**
+	 * Append a photo element from a list response.
+	 */
+	void add(Element photo) {
+		add(photo.getAttributeValue("id"), photo.getAttributeValue("secret"),
+				photo.getAttributeValue("server"), photo.getAttributeValue("title"));
+	}
+
+	/**
+	 * Append a photo.
+	 */
+	void add(String id, String secret, String server, String title) {
+		if (id == null) throw new NullPointerException("Can't add a photo without id");
+		ensureCapacity(size + 1);
+		int index = size++;
+
+		long numericId = parseId(id);
+		int numericServer = parseServer(server);
+		boolean packed = isPackable(secret);
+		if (numericId < 0 || numericServer == Integer.MIN_VALUE || !packed) {
+			ids[index] = -1;
+			irregular.put(index, new String[] { id, secret, server });
+		} else {
+			ids[index] = numericId;
+			servers[index] = numericServer;
+			packSecret(index, secret);
+		}
+
+		if (title == null) {
+			titles[index] = noTitle;
+		} else {
+			if (titleIndex == null) titleIndex = new HashMap<String,Integer>();
+			Integer pooled = titleIndex.get(title);
+			if (pooled == null) {
+				pooled = poolTitle(title);
+				titleIndex.put(title, pooled);
+			}
+			titles[index] = pooled;
+		}
+	}
+
+	/**
+	 * Release the unused capacity of the columns, and the table of pooled
+	 * titles.  Photos added afterwards only share titles among themselves.
+	 */
+	void trimToSize() {
+		ids = Arrays.copyOf(ids, size);
+		secrets = Arrays.copyOf(secrets, size * secretBytes);
+		servers = Arrays.copyOf(servers, size);
+		titles = Arrays.copyOf(titles, size);
+		titleBytes = Arrays.copyOf(titleBytes, titleOffsets[titleCount]);
+		titleOffsets = Arrays.copyOf(titleOffsets, titleCount + 1);
+		titleIndex = null;
+	}
+
+	// Append a title to the pool, and return its index
+	private int poolTitle(String title) {
+		byte[] bytes = title.getBytes(UTF8);
+		int start = titleOffsets[titleCount];
+		if (start + bytes.length > titleBytes.length)
+			titleBytes = Arrays.copyOf(titleBytes, Math.max(start + bytes.length, titleBytes.length + (titleBytes.length >> 1) + 1));
+		System.arraycopy(bytes, 0, titleBytes, start, bytes.length);
+		if (titleCount + 2 > titleOffsets.length)
+			titleOffsets = Arrays.copyOf(titleOffsets, titleOffsets.length + (titleOffsets.length >> 1) + 1);
+		titleOffsets[titleCount + 1] = start + bytes.length;
+		return titleCount++;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= ids.length) return;
+		int grown = Math.max(capacity, ids.length + (ids.length >> 1) + 1);
+		ids = Arrays.copyOf(ids, grown);
+		secrets = Arrays.copyOf(secrets, grown * secretBytes);
+		servers = Arrays.copyOf(servers, grown);
+		titles = Arrays.copyOf(titles, grown);
+	}
+
+	// Non negative value of a numeric ID, -1 if it isn't one
+	private static long parseId(String id) {
+		if (id.length() == 0 || id.length() > 18) return -1;
+		long value = 0;
+		for (int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			value = value * 10 + (c - '0');
+		}
+		// Leading zeros wouldn't round trip
+		if (id.length() > 1 && id.charAt(0) == '0') return -1;
+		return value;
+	}
+
+	// Server number, -1 if missing, Integer.MIN_VALUE if it doesn't fit
+	private static int parseServer(String server) {
+		if (server == null) return -1;
+		if (server.length() == 0 || server.length() > 9 || (server.length() > 1 && server.charAt(0) == '0'))
+			return Integer.MIN_VALUE;
+		for (int i = 0; i < server.length(); i++) {
+			char c = server.charAt(i);
+			if (c < '0' || c > '9') return Integer.MIN_VALUE;
+		}
+		return Integer.parseInt(server);
+	}
+
+	private static boolean isPackable(String secret) {
+		if (secret == null || secret.length() != secretBytes * 2) return false;
+		for (int i = 0; i < secret.length(); i++) {
+			if (Character.digit(secret.charAt(i), 16) < 0 || Character.isUpperCase(secret.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	private void packSecret(int index, String secret) {
+		int offset = index * secretBytes;
+		for (int i = 0; i < secretBytes; i++) {
+			int high = Character.digit(secret.charAt(2 * i), 16);
+			int low = Character.digit(secret.charAt(2 * i + 1), 16);
+			secrets[offset + i] = (byte) ((high << 4) | low);
+		}
+	}
+
+	private String unpackSecret(int index) {
+		int offset = index * secretBytes;
+		char[] hex = new char[secretBytes * 2];
+		for (int i = 0; i < secretBytes; i++) {
+			int b = secrets[offset + i] & 0xFF;
+			hex[2 * i] = Character.forDigit(b >> 4, 16);
+			hex[2 * i + 1] = Character.forDigit(b & 0xF, 16);
+		}
+		return new String(hex);
+	}
+}
@@ -28,6 +28,9 @@ public class Flickr {
     private static final String uploadURL = "https://up.flickr.com/services/upload/"; /// Upload url service
     private static final String replaceURL = "https://up.flickr.com/services/replace/"; /// Replace photos url service
     
+    // Cache of list reads, null if not used
+    private static volatile ReadCache readCache = null;
+    
     // No constructor - this class is static only.
     private Flickr() {
     }
@@ -115,4 +118,18 @@ public class Flickr {
 	public static String getReplaceURL() {
 		return replaceURL;
 	}
+
+	/**
+	 * Cache the lists read from Flickr, such as comments, set photos and
+	 * group pools.  Writes made through this library keep the cache coherent.
+	 * @param cache the cache, or null to stop caching
+	 * @see org.jickr.ReadCache
+	 */
+	public static void setReadCache(ReadCache cache) {
+		readCache = cache;
+	}
+
+	static ReadCache getReadCache() {
+		return readCache;
+	}
 }
@@ -14,6 +14,7 @@
 
 package org.jickr;
 
+import java.util.Collections;
 import java.util.List;
 import org.jdom.Document;
 import org.jdom.Element;
@@ -28,10 +29,11 @@ public class Group {
     
     private String id;
     
-    private boolean infoChecked = false;
-    private String name = null;
-    private String description = null;
-    private int numMembers = -1;
+    // Fetches the group info once, even when the Group is shared between threads
+    private final OnceLoader infoLoader = new OnceLoader();
+    private volatile String name = null;
+    private volatile String description = null;
+    private volatile int numMembers = -1;
     
     /** 
      * Creates a new instance of Group, based on the Element returned from a 
@@ -97,7 +99,7 @@ public class Group {
      * @return The name of the group.
      */
     public String getName() throws FlickrException {
-        if (name == null && !infoChecked) checkInfo();
+        if (name == null) checkInfo();
         return name;
     }
     
@@ -108,7 +110,7 @@ public class Group {
      * @return The description of the Group.
      */
     public String getDescription() throws FlickrException {
-        if (!infoChecked) checkInfo();
+        checkInfo();
         return description;
     }
     
@@ -120,7 +122,6 @@ public class Group {
      * @throws FlickrException on any error.
      */
     public int getNumMembers() throws FlickrException {
-        if (infoChecked) return numMembers;
         checkInfo();
         return numMembers;
     }
@@ -131,10 +132,20 @@ public class Group {
      * @throws FlickrException on any error.
      */
     public List<Photo> getPhotos() throws FlickrException {
+        ReadCache cache = Flickr.getReadCache();
+        String key = cache == null ? null : ReadCache.key("group.pool", id);
+        if (cache != null) {
+            List<Photo> cached = (List<Photo>) cache.get(key);
+            if (cached != null) return cached;
+        }
+        long stamp = cache == null ? 0 : cache.stamp();
+        
         Request req = new Request();
         req.setParameter("method","flickr.groups.pools.getPhotos");
         req.setParameter("group_id",id);
-        return new PhotoList(req);
+        List<Photo> photos = new PhotoList(req);
+        if (cache != null) cache.put(key, photos, stamp, Collections.singletonList(ReadCache.groupPool(id)));
+        return photos;
     }
     
     /**
@@ -148,6 +159,7 @@ public class Group {
         req.setParameter("group_id",id);
         req.setParameter("photo_id",photo.getID());
         req.getResponse(); // Null response
+        ReadCache.changed(ReadCache.groupPool(id));
         return;
     }
 
@@ -162,10 +174,20 @@ public class Group {
         req.setParameter("group_id",id);
         req.setParameter("photo_id",photo.getID());
         req.getResponse(); // Null response
+        ReadCache.changed(ReadCache.groupPool(id));
         return;
     }
     
     private void checkInfo() throws FlickrException {
+        if (infoLoader.isDone()) return;
+        infoLoader.load(new OnceLoader.Loader() {
+            public void load() throws FlickrException {
+                loadInfo();
+            }
+        });
+    }
+    
+    private void loadInfo() throws FlickrException {
         Request req = new Request();
         req.setParameter("method","flickr.groups.getInfo");
         req.setParameter("group_id",id);
@@ -174,10 +196,11 @@ public class Group {
         Element root = doc.getRootElement();
         
         try {
-            name = root.getChild("group").getChildText("name");
-            description = root.getChild("group").getChildText("description");
-            numMembers = Integer.parseInt(root.getChild("group").getChildText("members"));
-            infoChecked = true;
+            Element group = root.getChild("group");
+            int members = Integer.parseInt(group.getChildText("members"));
+            description = group.getChildText("description");
+            numMembers = members;
+            name = group.getChildText("name");
         } catch (NullPointerException npe) {
             throw new FlickrException("Badly Formed XML",npe);
         }
@@ -0,0 +1,230 @@
+package org.jickr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Interestingness lists by date, kept on disk once they can't change anymore.
+ *
+ * The list of a past day is fetched once, then written to a file of the store
+ * directory and read from there forever, by this program and the next ones.
+ * Only the most recently used past lists stay in memory as well.  Today's and
+ * yesterday's lists (in UTC) may still change: they are only kept in memory,
+ * for the time to live given at construction.
+ *
+ * <code>backfill</code> fills a range of dates in parallel.  Every date is
+ * written as soon as it is fetched, so an interrupted backfill restarts where
+ * it stopped.
+ *
+ * Example of use:
+ * 	 InterestingnessStore store = new InterestingnessStore(new File("interesting"), 15 * 60 * 1000L);
+ * 	 store.backfill(from, to, 4, new RateLimiter(3));
+ * 	 Photo.setInterestingnessStore(store);
+ * 	 List&lt;Photo&gt; photos = Photo.getInteresting(someDay);
+ */
+public class InterestingnessStore {
+
+	// Format of the store files
+	private static final int version = 1;
+	private static final long day = 24 * 60 * 60 * 1000L;
+	// Past lists kept in memory; older ones are read again from their file
+	private static final int maxPastLists = 64;
+
+	private final File directory;
+	private final long ttl;
+
+	// Past lists read or fetched, by date, access ordered and guarded by itself
+	private final LinkedHashMap<String,CompactPhotoList> past = new LinkedHashMap<String,CompactPhotoList>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String,CompactPhotoList> eldest) {
+			return size() > maxPastLists;
+		}
+	};
+	// Recent lists, by date
+	private final ConcurrentHashMap<String,SearchCache.Page> recent = new ConcurrentHashMap<String,SearchCache.Page>();
+
+	/**
+	 * Creates a store.
+	 * @param directory directory of the files, created if needed
+	 * @param recentTtlMillis time to live of the lists of today and yesterday
+	 */
+	public InterestingnessStore(File directory, long recentTtlMillis) {
+		if (directory == null) throw new NullPointerException("directory cannot be null");
+		if (recentTtlMillis <= 0) throw new IllegalArgumentException("recentTtlMillis must be positive");
+		this.directory = directory;
+		this.ttl = recentTtlMillis;
+	}
+
+	/**
+	 * Get the interestingness list of a date.
+	 * @param date the day, in the time zone of the Calendar
+	 * @return the interesting photos of that day
+	 * @throws FlickrException if the list has to be fetched, and that fails
+	 */
+	public List<Photo> get(Calendar date) throws FlickrException {
+		return getList(key(date));
+	}
+
+	/**
+	 * Fetch and store the lists of every date of a range that isn't stored yet.
+	 *
+	 * @param from first date of the range
+	 * @param to last date of the range, inclusive
+	 * @param parallelism maximum number of concurrent calls to Flickr
+	 * @param limiter rate limiter shared with other callers, may be null
+	 * @return the number of dates fetched
+	 * @throws FlickrException on the first error.  The dates fetched until then are kept.
+	 */
+	public int backfill(Calendar from, Calendar to, int parallelism, RateLimiter limiter) throws FlickrException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		Calendar cal = (Calendar) from.clone();
+		while (!cal.after(to)) {
+			final String key = key(cal);
+			cal.add(Calendar.DAY_OF_MONTH, 1);
+			if (!isFrozen(key) || file(key).exists()) continue;
+			tasks.add(new Callable<Void>() {
+				public Void call() throws FlickrException {
+					getList(key);
+					return null;
+				}
+			});
+		}
+		// One batch at a time, so a failure stops the crawl early
+		int batch = parallelism * 4;
+		for (int i = 0; i < tasks.size(); i += batch) {
+			Parallel.invokeAll(tasks.subList(i, Math.min(tasks.size(), i + batch)), parallelism, limiter);
+		}
+		return tasks.size();
+	}
+
+	/**
+	 * Whether the list of a date is stored on disk.
+	 * @param date the day, in the time zone of the Calendar
+	 */
+	public boolean isStored(Calendar date) {
+		return file(key(date)).exists();
+	}
+
+	private CompactPhotoList getList(String key) throws FlickrException {
+		if (!isFrozen(key)) {
+			SearchCache.Page cached = recent.get(key);
+			if (cached != null && cached.expires > System.currentTimeMillis()) return cached.photos;
+			CompactPhotoList list = fetch(key);
+			recent.put(key, new SearchCache.Page(1, list, System.currentTimeMillis() + ttl));
+			return list;
+		}
+
+		CompactPhotoList list;
+		synchronized (past) {
+			list = past.get(key);
+		}
+		if (list != null) return list;
+		File file = file(key);
+		if (file.exists()) {
+			try {
+				list = read(file);
+			} catch (IOException ex) {
+				Logger.global.warning("Can't read interestingness of "+key+", fetching it again: "+ex.getMessage());
+			}
+		}
+		if (list == null) {
+			list = fetch(key);
+			try {
+				write(file, list);
+			} catch (IOException ex) {
+				Logger.global.warning("Can't store interestingness of "+key+": "+ex.getMessage());
+			}
+		}
+		synchronized (past) {
+			past.put(key, list);
+		}
+		return list;
+	}
+
+	private static CompactPhotoList fetch(String key) throws FlickrException {
+		Request req = new Request();
+		req.setParameter("method","flickr.interestingness.getList");
+		req.setParameter("date",key);
+		return new CompactPhotoList(req, 0);
+	}
+
+	// Lists of days before yesterday, UTC, don't change anymore
+	private static boolean isFrozen(String key) {
+		Calendar limit = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+		limit.setTimeInMillis(System.currentTimeMillis() - day);
+		return key.compareTo(key(limit)) < 0;
+	}
+
+	private static String key(Calendar cal) {
+		return String.format("%1$tY-%1$tm-%1$td",cal);
+	}
+
+	private File file(String key) {
+		return new File(directory, key+".interesting");
+	}
+
+	// Written to a temporary file first, so readers never see half a list
+	private void write(File file, CompactPhotoList list) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can't create "+directory);
+		File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(version);
+				out.writeInt(list.size());
+				for (int i = 0; i < list.size(); i++) {
+					out.writeUTF(list.getID(i));
+					writeNullable(out, list.getSecret(i));
+					writeNullable(out, list.getServer(i));
+					writeNullable(out, list.getTitle(i));
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private static CompactPhotoList read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != version) throw new IOException("Unknown format: "+file);
+			int size = in.readInt();
+			CompactPhotoList list = new CompactPhotoList(size);
+			for (int i = 0; i < size; i++) {
+				list.add(in.readUTF(), readNullable(in), readNullable(in), readNullable(in));
+			}
+			list.trimToSize();
+			return list;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeNullable(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) out.writeUTF(value);
+	}
+
+	private static String readNullable(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,262 @@
+package org.jickr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.jdom.Document;
+import org.jdom.Element;
+
+/**
+ * Keeps a PhotoCatalog current with the changes of its user's library.
+ *
+ * After the first full sync, each <code>sync()</code> only asks Flickr for the
+ * photos updated since the previous one, with flickr.photos.recentlyUpdated.
+ * The metadata of a changed photo comes with the list itself; only its sets
+ * cost an extra call.
+ *
+ * When a file is given, the catalog is saved to it after every sync, along with
+ * the high-water mark (the latest update time seen) and the time of the last
+ * deletion check.  A restarted program reads the catalog back from the file and
+ * only asks Flickr for what it missed.  Without a file, the first sync of every
+ * program loads the whole library.
+ *
+ * Deleted photos don't show up as updates: at most once per deletion check
+ * interval, the IDs of the whole library are listed (without any metadata)
+ * and the photos missing from the list are removed from the catalog.
+ *
+ * Example of use:
+ * 	 LibrarySync sync = new LibrarySync(catalog, new File("catalog.dat"));
+ * 	 while (running) {
+ * 		 sync.sync();
+ * 		 Thread.sleep(60000);
+ * 	 }
+ */
+public class LibrarySync {
+
+	// Format of the file
+	private static final int version = 1;
+
+	private final PhotoCatalog catalog;
+	private final File file;
+	private final long deletionCheckInterval;
+
+	// Guarded by this
+	private long mark = 0;
+	private long lastDeletionCheck = 0;
+	private boolean loaded = false;
+
+	/**
+	 * Creates a sync engine keeping the catalog in memory only, checking for
+	 * deletions once a day.
+	 * @param catalog the catalog to keep current
+	 */
+	public LibrarySync(PhotoCatalog catalog) {
+		this(catalog, null, 24 * 60 * 60 * 1000L);
+	}
+
+	/**
+	 * Creates a sync engine saving the catalog to a file, checking for
+	 * deletions once a day.
+	 * @param catalog the catalog to keep current
+	 * @param file file of the catalog, created by the first sync
+	 */
+	public LibrarySync(PhotoCatalog catalog, File file) {
+		this(catalog, file, 24 * 60 * 60 * 1000L);
+	}
+
+	/**
+	 * Creates a sync engine.
+	 * @param catalog the catalog to keep current
+	 * @param file file of the catalog, null to keep it in memory only
+	 * @param deletionCheckMillis minimal delay between two checks for deleted photos
+	 */
+	public LibrarySync(PhotoCatalog catalog, File file, long deletionCheckMillis) {
+		if (catalog == null) throw new NullPointerException("catalog cannot be null");
+		if (deletionCheckMillis <= 0) throw new IllegalArgumentException("deletionCheckMillis must be positive");
+		this.catalog = catalog;
+		this.file = file;
+		this.deletionCheckInterval = deletionCheckMillis;
+	}
+
+	/**
+	 * Bring the catalog up to date.  The first call reads the catalog from the
+	 * file if there is one; the whole library is only synced when there isn't.
+	 * Later calls only fetch the changes.
+	 *
+	 * @return the number of photos added, updated or removed
+	 * @throws FlickrException on any error.  The high-water mark is then left
+	 * unchanged, and the next sync asks for the same changes again.
+	 */
+	public synchronized int sync() throws FlickrException {
+		if (!loaded) {
+			loaded = true;
+			if (catalog.getLastSync() == null) load();
+			// A catalog synced before this engine existed
+			if (mark == 0 && catalog.getLastSync() != null) mark = catalog.getMaxLastUpdate();
+		}
+		int changed;
+		if (catalog.getLastSync() == null) {
+			catalog.sync();
+			lastDeletionCheck = System.currentTimeMillis();
+			mark = catalog.getMaxLastUpdate();
+			changed = catalog.size();
+		} else {
+			changed = syncUpdates();
+			if (System.currentTimeMillis() - lastDeletionCheck >= deletionCheckInterval) {
+				changed += syncDeletions();
+			}
+		}
+		save();
+		return changed;
+	}
+
+	/**
+	 * Remove the photos deleted from Flickr, whatever the time of the previous check.
+	 * @return the number of photos removed
+	 * @throws FlickrException on any error
+	 */
+	public synchronized int syncDeletions() throws FlickrException {
+		Request req = new Request();
+		req.setParameter("method","flickr.people.getPhotos");
+		req.setParameter("user_id",catalog.getUser().getNSID());
+		req.setParameter("per_page","500");
+		Set<String> remote = new HashSet<String>();
+		List<Element> photos = new ArrayList<Element>();
+		int page = 0;
+		int pages;
+		do {
+			page++;
+			photos.clear();
+			pages = PhotoList.fetchPage(req, page, photos);
+			for (Element photo : photos) {
+				remote.add(photo.getAttributeValue("id"));
+			}
+		} while (page < pages);
+
+		int removed = 0;
+		for (String id : catalog.getIDs()) {
+			if (remote.contains(id)) continue;
+			catalog.remove(id);
+			removed++;
+		}
+		lastDeletionCheck = System.currentTimeMillis();
+		return removed;
+	}
+
+	/**
+	 * Get the high-water mark: the latest update time already synced.
+	 * @return seconds since the epoch, 0 if never synced
+	 */
+	public synchronized long getMark() {
+		return mark;
+	}
+
+	// Fetch the photos updated since the mark
+	private int syncUpdates() throws FlickrException {
+		Request req = new Request();
+		req.setParameter("method","flickr.photos.recentlyUpdated");
+		// min_date is inclusive: the photos of the mark itself are fetched again
+		req.setParameter("min_date",Long.toString(mark));
+		req.setParameter("extras",PhotoCatalog.extras);
+		req.setParameter("per_page","500");
+
+		List<PhotoCatalog.Entry> updated = new ArrayList<PhotoCatalog.Entry>();
+		List<Element> photos = new ArrayList<Element>();
+		int page = 0;
+		int pages;
+		do {
+			page++;
+			photos.clear();
+			pages = PhotoList.fetchPage(req, page, photos);
+			for (Element photo : photos) {
+				updated.add(new PhotoCatalog.Entry(photo));
+			}
+		} while (page < pages);
+
+		int changed = 0;
+		long newMark = mark;
+		for (PhotoCatalog.Entry entry : updated) {
+			newMark = Math.max(newMark, entry.lastUpdate / 1000);
+			PhotoCatalog.Entry known = catalog.get(entry.id);
+			if (known != null && known.lastUpdate == entry.lastUpdate) continue;
+			entry.sets = getSets(entry.id);
+			catalog.put(entry);
+			changed++;
+		}
+		mark = newMark;
+		return changed;
+	}
+
+	// Read the catalog and the marks saved by a previous program
+	private void load() {
+		if (file == null || !file.exists()) return;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != version) throw new IOException("Unknown format: "+file);
+				long savedMark = in.readLong();
+				long savedDeletionCheck = in.readLong();
+				catalog.read(in);
+				mark = savedMark;
+				lastDeletionCheck = savedDeletionCheck;
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			Logger.global.warning("Can't read catalog "+file+", syncing the whole library: "+ex.getMessage());
+		}
+	}
+
+	// Written to a temporary file first, so a crash never leaves half a catalog
+	private void save() {
+		if (file == null) return;
+		try {
+			File directory = file.getAbsoluteFile().getParentFile();
+			File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+				try {
+					out.writeInt(version);
+					out.writeLong(mark);
+					out.writeLong(lastDeletionCheck);
+					catalog.write(out);
+				} finally {
+					out.close();
+				}
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tmp.delete();
+			}
+		} catch (IOException ex) {
+			// The next sync saves it again
+			Logger.global.warning("Can't save catalog "+file+": "+ex.getMessage());
+		}
+	}
+
+	// IDs of the sets a photo belongs to
+	private static String[] getSets(String photoId) throws FlickrException {
+		Request req = new Request();
+		req.setParameter("method","flickr.photos.getAllContexts");
+		req.setParameter("photo_id",photoId);
+		Document doc = req.getResponse();
+		List<Element> sets = doc.getRootElement().getChildren("set");
+		String[] ids = new String[sets.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = sets.get(i).getAttributeValue("id");
+		}
+		return ids;
+	}
+}
@@ -20,11 +20,16 @@ package org.jickr;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Map;
  
 /**
  * <code>MultiPartFormOutputStream</code> is used to write 
  * "multipart/form-data" to a <code>java.net.URLConnection</code> for 
  * POSTing.  This is primarily for file uploading to HTTP servers.  
+ * It is the encoder used by <code>Request</code> for every upload and 
+ * replace call.  
  * 
  */
 class MultipartFormOutputStream {
@@ -38,6 +43,11 @@ class MultipartFormOutputStream {
 	 */
 	private static final String PREFIX = "--";
  
+	/**
+	 * The charset of the headers and field values.  
+	 */
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+ 
 	/**
 	 * The output stream to write to.  
 	 */
@@ -179,16 +189,8 @@ class MultipartFormOutputStream {
 		\r\n
 		<value>\r\n
 		*/
-		// write boundary
-		out.writeBytes(PREFIX);
-		out.writeBytes(boundary);
-		out.writeBytes(NEWLINE);
-		// write content header
-		out.writeBytes("Content-Disposition: form-data; name=\"" + name + "\"");
-		out.writeBytes(NEWLINE);
-		out.writeBytes(NEWLINE);
-		// write content
-		out.writeBytes(value);
+		out.write(fieldHeader(boundary, name));
+		out.write(value.getBytes(CHARSET));
 		out.writeBytes(NEWLINE);
 		out.flush();
 	}
@@ -214,7 +216,7 @@ class MultipartFormOutputStream {
 		if(file.isDirectory()) {
 			throw new IllegalArgumentException("File cannot be a directory.");
 		}
-		writeFile(name, mimeType, file.getCanonicalPath(), new FileInputStream(file));
+		writeFile(name, mimeType, UploadSource.fromFile(file), null);
 	}
  
 	/**
@@ -243,19 +245,7 @@ class MultipartFormOutputStream {
 		\r\n
 		<file-data>\r\n
 		*/
-		// write boundary
-		out.writeBytes(PREFIX);
-		out.writeBytes(boundary);
-		out.writeBytes(NEWLINE);
-		// write content header
-		out.writeBytes("Content-Disposition: form-data; name=\"" + name + 
-			"\"; filename=\"" + fileName + "\"");
-		out.writeBytes(NEWLINE);
-		if(mimeType != null) {
-			out.writeBytes("Content-Type: " + mimeType);
-			out.writeBytes(NEWLINE);
-		}
-		out.writeBytes(NEWLINE);
+		out.write(fileHeader(boundary, name, mimeType, fileName));
 		// write content
 		byte[] data = new byte[1024];
 		int r = 0;
@@ -290,28 +280,37 @@ class MultipartFormOutputStream {
 		if(fileName == null || fileName.length() == 0) {
 			throw new IllegalArgumentException("File name cannot be null or empty.");
 		}
-		/*
-		--boundary\r\n
-		Content-Disposition: form-data; name="<fieldName>"; filename="<filename>"\r\n
-		Content-Type: <mime-type>\r\n
-		\r\n
-		<file-data>\r\n
-		*/
-		// write boundary
-		out.writeBytes(PREFIX);
-		out.writeBytes(boundary);
-		out.writeBytes(NEWLINE);
-		// write content header
-		out.writeBytes("Content-Disposition: form-data; name=\"" + name + 
-			"\"; filename=\"" + fileName + "\"");
-		out.writeBytes(NEWLINE);
-		if(mimeType != null) {
-			out.writeBytes("Content-Type: " + mimeType);
-			out.writeBytes(NEWLINE);
+		writeFile(name, mimeType, UploadSource.fromBytes(data, fileName), null);
+	}
+ 
+	/**
+	 * Writes the content of an upload source, reporting the progress.  
+	 * Exactly <code>source.getLength()</code> bytes of content are written, 
+	 * which is what <code>getContentLength(String, Map)</code> accounts for.  
+	 * 
+	 * @param  name      the field name
+	 * @param  mimeType  the file content type, or null to guess it from the file name
+	 * @param  source    the content to send
+	 * @param  progress  the progress to update, may be null
+	 * @throws  java.io.IOException  on input/output errors
+	 */
+	void writeFile(String name, String mimeType, UploadSource source, 
+			RequestProgress progress) 
+			throws java.io.IOException {
+		if(source == null) {
+			throw new IllegalArgumentException("Source cannot be null.");
+		}
+		if(mimeType == null) {
+			mimeType = source.getMimeType();
+		}
+		out.write(fileHeader(boundary, name, mimeType, source.getFileName()));
+		if(progress != null) {
+			progress.start(source.getFile(), source.getLength());
+		}
+		source.writeContent(out, progress);
+		if(progress != null) {
+			progress.finish();
 		}
-		out.writeBytes(NEWLINE);
-		// write content
-		out.write(data, 0, data.length);
 		out.writeBytes(NEWLINE);
 		out.flush();
 	}
@@ -344,6 +343,53 @@ class MultipartFormOutputStream {
 		out.close();
 	}
  
+	/**
+	 * Computes the exact length of the body written for these parameters, 
+	 * including the final boundary.  Values must be <code>String</code> or 
+	 * <code>UploadSource</code>.  Used with 
+	 * <code>HttpURLConnection.setFixedLengthStreamingMode(long)</code>.  
+	 * 
+	 * @param  boundary    the boundary string
+	 * @param  parameters  the fields, in the order they will be written
+	 * @return  the length of the body, in bytes
+	 */
+	static long getContentLength(String boundary, Map<String, Object> parameters) {
+		long size = 0;
+		for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+			Object value = entry.getValue();
+			if (value instanceof UploadSource) {
+				UploadSource source = (UploadSource) value;
+				size += fileHeader(boundary, entry.getKey(), source.getMimeType(), source.getFileName()).length;
+				size += source.getLength();
+			} else {
+				size += fieldHeader(boundary, entry.getKey()).length;
+				size += String.valueOf(value).getBytes(CHARSET).length;
+			}
+			size += NEWLINE.length();
+		}
+		size += PREFIX.length() + boundary.length() + PREFIX.length() + NEWLINE.length();
+		return size;
+	}
+ 
+	private static byte[] fieldHeader(String boundary, String name) {
+		return (PREFIX + boundary + NEWLINE 
+			+ "Content-Disposition: form-data; name=\"" + name + "\"" + NEWLINE 
+			+ NEWLINE).getBytes(CHARSET);
+	}
+ 
+	private static byte[] fileHeader(String boundary, String name, 
+			String mimeType, String fileName) {
+		StringBuilder header = new StringBuilder();
+		header.append(PREFIX).append(boundary).append(NEWLINE);
+		header.append("Content-Disposition: form-data; name=\"").append(name)
+			.append("\"; filename=\"").append(fileName).append("\"").append(NEWLINE);
+		if(mimeType != null) {
+			header.append("Content-Type: ").append(mimeType).append(NEWLINE);
+		}
+		header.append(NEWLINE);
+		return header.toString().getBytes(CHARSET);
+	}
+ 
 	/**
 	 * Gets the multipart boundary string being used by this stream.  
 	 * 
@@ -377,17 +423,19 @@ class MultipartFormOutputStream {
 		return urlConn;
 	}
  
+	private static final SecureRandom random = new SecureRandom();
+ 
 	/**
 	 * Creates a multipart boundary string by concatenating 20 hyphens (-) 
-	 * and the hexadecimal (base-16) representation of the current time in 
-	 * milliseconds.  
+	 * and 128 random bits in hexadecimal (base-16), so the boundary can't
+	 * be guessed from the time of the request nor appear in the content.  
 	 * 
 	 * @return  a multipart boundary string
 	 * @see  #getContentType(String)
 	 */
 	public static String createBoundary() {
 		return "--------------------" + 
-			Long.toString(System.currentTimeMillis(), 16);
+			Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
 	}
  
 	/**
@@ -0,0 +1,679 @@
+package org.jickr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * Sends metadata changes to Flickr in the background, merging the changes made
+ * to the same object before they are sent.
+ *
+ * Each change is queued and returns at once, with a future completed when
+ * Flickr accepted it.  A change waits in the queue for the delay given at
+ * construction; changes made meanwhile to the same object are merged into it:
+ * the last title or description of a set wins, and only the last of adding
+ * and removing the same photo to a set, a group or the favorites is sent.
+ * The futures of merged changes complete with the change actually sent.
+ *
+ * Changes are sent with bounded concurrency, under the rate limiter given at
+ * construction.  Many photos added to or removed from the same set are sent
+ * as a single edit of the set, when that takes fewer calls than one per photo.
+ *
+ * When a log file is given, every change is appended to it before it is
+ * queued, and marked as done once sent.  Changes not marked as done, because
+ * the program stopped or because Flickr could not be reached, are sent again
+ * by the next MutationQueue opened on the same file.  Changes Flickr refused
+ * are marked as done, and only reported through their future.
+ *
+ * Example of use:
+ * 	 MutationQueue queue = new MutationQueue(new File("mutations.log"), 4, new RateLimiter(1), 2000);
+ * 	 queue.addToSet(setId, photoId);
+ * 	 queue.editSetMeta(setId, "Holidays", null);
+ * 	 queue.close();
+ */
+public class MutationQueue {
+
+	// Set edits of fewer photos are sent one call per photo: a single edit
+	// takes a getInfo, at least a page of the set's photos and the edit
+	private static final int bulkThreshold = 4;
+	// Photos per page when listing a set
+	private static final int listPageSize = 500;
+
+	private static final String addToSet = "flickr.photosets.addPhoto";
+	private static final String removeFromSet = "flickr.photosets.removePhoto";
+
+	private final User user;
+	private final File logFile;
+	private final int parallelism;
+	private final RateLimiter limiter;
+	private final long delay;
+	private final Thread worker;
+
+	// All guarded by this
+	private final LinkedHashMap<String,Mutation> pending = new LinkedHashMap<String,Mutation>();
+	private int inFlight = 0;
+	private boolean flushing = false;
+	private boolean closed = false;
+	private long nextSeq = 1;
+	private Writer log;
+	private FileOutputStream logOut;
+	// Changes that failed for a retryable error, to be sent again by the next queue on the log
+	private final LinkedHashMap<String,Mutation> failed = new LinkedHashMap<String,Mutation>();
+
+	// A call to Flickr, and the changes merged into it
+	private static final class Mutation {
+		final String key;
+		String method;
+		final Map<String,String> params = new TreeMap<String,String>();
+		final long created = System.currentTimeMillis();
+		final List<Long> seqs = new ArrayList<Long>(1);
+		final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(1);
+
+		Mutation(String key, String method) {
+			this.key = key;
+			this.method = method;
+		}
+	}
+
+	/**
+	 * Creates a queue sending changes as the user in the current AuthContext.
+	 *
+	 * @param log file logging the changes not sent yet, null to keep them in memory only
+	 * @param parallelism maximum number of concurrent calls to Flickr
+	 * @param limiter rate limiter shared with other callers, may be null
+	 * @param delayMillis time a change waits for others to merge with
+	 * @throws FlickrException if the log can't be read or written
+	 */
+	public MutationQueue(File log, int parallelism, RateLimiter limiter, long delayMillis) throws FlickrException {
+		this(Auth.getAuthContext(), log, parallelism, limiter, delayMillis);
+	}
+
+	/**
+	 * Creates a queue.
+	 *
+	 * @param user the user to send the changes as. Must be authenticated with WRITE permission.
+	 * @param log file logging the changes not sent yet, null to keep them in memory only
+	 * @param parallelism maximum number of concurrent calls to Flickr
+	 * @param limiter rate limiter shared with other callers, may be null
+	 * @param delayMillis time a change waits for others to merge with
+	 * @throws FlickrException if the log can't be read or written
+	 */
+	public MutationQueue(User user, File log, int parallelism, RateLimiter limiter, long delayMillis) throws FlickrException {
+		if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be positive");
+		if (delayMillis < 0) throw new IllegalArgumentException("delayMillis cannot be negative");
+		this.user = user;
+		this.logFile = log;
+		this.parallelism = parallelism;
+		this.limiter = limiter;
+		this.delay = delayMillis;
+		if (log != null) recover();
+		this.worker = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, "jickr-mutation-queue");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Change the title and description of a set.
+	 * @param setId ID of the set
+	 * @param title new title, required by Flickr
+	 * @param description new description, null to keep it
+	 * @return a future completed once Flickr accepted the change
+	 * @see org.jickr.PhotoSet#updateTitleDesc(String, String)
+	 */
+	public CompletableFuture<Void> editSetMeta(String setId, String title, String description) throws FlickrException {
+		if (setId == null) throw new NullPointerException("Set id cannot be null");
+		if (title == null) throw new NullPointerException("Title may not be null");
+		Map<String,String> params = new TreeMap<String,String>();
+		params.put("photoset_id", setId);
+		params.put("title", title);
+		if (description != null) params.put("description", description);
+		return submit("meta:"+setId, "flickr.photosets.editMeta", params);
+	}
+
+	/**
+	 * Add a photo to the favorites of the user.
+	 * @return a future completed once Flickr accepted the change
+	 * @see org.jickr.Photo#addFavorite()
+	 */
+	public CompletableFuture<Void> addFavorite(String photoId) throws FlickrException {
+		return submitPhoto("favorite:"+photoId, "flickr.favorites.add", null, null, photoId);
+	}
+
+	/**
+	 * Remove a photo from the favorites of the user.
+	 * @return a future completed once Flickr accepted the change
+	 * @see org.jickr.Photo#removeFavorite()
+	 */
+	public CompletableFuture<Void> removeFavorite(String photoId) throws FlickrException {
+		return submitPhoto("favorite:"+photoId, "flickr.favorites.remove", null, null, photoId);
+	}
+
+	/**
+	 * Add a photo to a set.
+	 * @return a future completed once Flickr accepted the change
+	 * @see org.jickr.PhotoSet#add(String)
+	 */
+	public CompletableFuture<Void> addToSet(String setId, String photoId) throws FlickrException {
+		return submitPhoto("set:"+setId+":"+photoId, addToSet, "photoset_id", setId, photoId);
+	}
+
+	/**
+	 * Remove a photo from a set.
+	 * @return a future completed once Flickr accepted the change
+	 * @see org.jickr.PhotoSet#remove(Photo)
+	 */
+	public CompletableFuture<Void> removeFromSet(String setId, String photoId) throws FlickrException {
+		return submitPhoto("set:"+setId+":"+photoId, removeFromSet, "photoset_id", setId, photoId);
+	}
+
+	/**
+	 * Add a photo to the pool of a group.
+	 * @return a future completed once Flickr accepted the change
+	 * @see org.jickr.Group#add(Photo)
+	 */
+	public CompletableFuture<Void> addToGroup(String groupId, String photoId) throws FlickrException {
+		return submitPhoto("group:"+groupId+":"+photoId, "flickr.groups.pools.add", "group_id", groupId, photoId);
+	}
+
+	/**
+	 * Remove a photo from the pool of a group.
+	 * @return a future completed once Flickr accepted the change
+	 * @see org.jickr.Group#remove(Photo)
+	 */
+	public CompletableFuture<Void> removeFromGroup(String groupId, String photoId) throws FlickrException {
+		return submitPhoto("group:"+groupId+":"+photoId, "flickr.groups.pools.remove", "group_id", groupId, photoId);
+	}
+
+	/**
+	 * Send every queued change now, without waiting for the delay, and wait
+	 * until they are all sent.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void flush() throws InterruptedException {
+		synchronized (this) {
+			flushing = true;
+			notifyAll();
+			try {
+				while (!pending.isEmpty() || inFlight > 0) {
+					if (!worker.isAlive()) break;
+					wait();
+				}
+			} finally {
+				flushing = false;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of changes waiting to be sent, merged changes counting once.
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Send every queued change, and stop.  Changes can't be queued anymore.
+	 * @throws InterruptedException if interrupted while waiting for the changes to be sent
+	 */
+	public void close() throws InterruptedException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		worker.join();
+		synchronized (this) {
+			closeLog();
+		}
+	}
+
+	private CompletableFuture<Void> submitPhoto(String key, String method, String targetParam, String target, String photoId) throws FlickrException {
+		if (photoId == null) throw new NullPointerException("Photo id cannot be null");
+		if (targetParam != null && target == null) throw new NullPointerException(targetParam+" cannot be null");
+		Map<String,String> params = new TreeMap<String,String>();
+		if (targetParam != null) params.put(targetParam, target);
+		params.put("photo_id", photoId);
+		return submit(key, method, params);
+	}
+
+	private synchronized CompletableFuture<Void> submit(String key, String method, Map<String,String> params) throws FlickrException {
+		if (closed) throw new FlickrException("MutationQueue is closed");
+		long seq = nextSeq++;
+		appendLog("M\t"+seq+"\t"+encode(key)+"\t"+method+"\t"+encode(params));
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		merge(key, method, params, seq).futures.add(future);
+		notifyAll();
+		return future;
+	}
+
+	// Merge a change into the pending one of the same object, if any
+	private Mutation merge(String key, String method, Map<String,String> params, long seq) {
+		Mutation mutation = pending.get(key);
+		if (mutation == null) {
+			mutation = new Mutation(key, method);
+			pending.put(key, mutation);
+		} else if (!mutation.method.equals(method)) {
+			// Adding then removing, or the reverse: the photo may have been
+			// there before, so only the last one counts
+			mutation.method = method;
+			mutation.params.clear();
+		}
+		mutation.params.putAll(params);
+		mutation.seqs.add(seq);
+		return mutation;
+	}
+
+	private void work() {
+		if (user != null) Auth.setAuthContext(user);
+		while (true) {
+			List<Mutation> batch;
+			try {
+				batch = nextBatch();
+			} catch (InterruptedException ie) {
+				return;
+			}
+			if (batch == null) return;
+			try {
+				send(batch);
+			} finally {
+				synchronized (this) {
+					inFlight -= batch.size();
+					if (pending.isEmpty() && inFlight == 0) compactLog();
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	// Wait for changes whose delay is over, or for a flush
+	private synchronized List<Mutation> nextBatch() throws InterruptedException {
+		while (true) {
+			if (pending.isEmpty()) {
+				if (closed) return null;
+				wait();
+				continue;
+			}
+			long now = System.currentTimeMillis();
+			boolean all = flushing || closed;
+			// The oldest change is first
+			long due = pending.values().iterator().next().created + delay;
+			if (!all && due > now) {
+				wait(due - now);
+				continue;
+			}
+			List<Mutation> batch = new ArrayList<Mutation>();
+			for (Iterator<Mutation> it = pending.values().iterator(); it.hasNext();) {
+				Mutation mutation = it.next();
+				if (!all && mutation.created + delay > now) break;
+				batch.add(mutation);
+				it.remove();
+			}
+			inFlight += batch.size();
+			return batch;
+		}
+	}
+
+	private void send(List<Mutation> batch) {
+		// Set edits grouped by set, to be sent at once
+		Map<String,List<Mutation>> bySet = new LinkedHashMap<String,List<Mutation>>();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final Mutation mutation : batch) {
+			if (mutation.method.equals(addToSet) || mutation.method.equals(removeFromSet)) {
+				String setId = mutation.params.get("photoset_id");
+				List<Mutation> edits = bySet.get(setId);
+				if (edits == null) {
+					edits = new ArrayList<Mutation>();
+					bySet.put(setId, edits);
+				}
+				edits.add(mutation);
+				continue;
+			}
+			tasks.add(call(mutation));
+		}
+		for (final Map.Entry<String,List<Mutation>> set : bySet.entrySet()) {
+			if (set.getValue().size() < bulkThreshold) {
+				for (Mutation mutation : set.getValue()) {
+					tasks.add(call(mutation));
+				}
+				continue;
+			}
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					editSet(set.getKey(), set.getValue());
+					return null;
+				}
+			});
+		}
+		try {
+			Parallel.invokeAll(tasks, parallelism, limiter);
+		} catch (FlickrException ex) {
+			// Failures are reported through the futures
+		} catch (RuntimeException ex) {
+			Logger.global.warning("Error sending changes: "+ex);
+		}
+	}
+
+	// Send the photos added to or removed from a set, as a single edit if
+	// listing the set costs fewer calls than there are photos
+	private void editSet(String setId, List<Mutation> edits) {
+		PhotoSet set = PhotoSet.withID(setId);
+		boolean bulk;
+		try {
+			bulk = edits.size() > set.getNumPhotos() / listPageSize + 2;
+		} catch (FlickrRuntimeException ex) {
+			bulk = false;
+		}
+		if (!bulk) {
+			List<Callable<Void>> calls = new ArrayList<Callable<Void>>(edits.size());
+			for (Mutation mutation : edits) {
+				calls.add(call(mutation));
+			}
+			try {
+				Parallel.invokeAll(calls, parallelism, limiter);
+			} catch (FlickrException ex) {
+				// Failures are reported through the futures
+			}
+			return;
+		}
+
+		// In the order they were queued
+		Set<String> adds = new LinkedHashSet<String>();
+		Set<String> removes = new HashSet<String>();
+		for (Mutation mutation : edits) {
+			(mutation.method.equals(addToSet) ? adds : removes).add(mutation.params.get("photo_id"));
+		}
+		FlickrException failure = null;
+		try {
+			set.editMembership(adds, removes, parallelism, limiter);
+		} catch (FlickrException ex) {
+			failure = ex;
+		} catch (RuntimeException ex) {
+			failure = new FlickrException("Error editing set "+setId, ex);
+		}
+		for (Mutation mutation : edits) {
+			done(mutation, failure);
+		}
+	}
+
+	// A single call to Flickr
+	private Callable<Void> call(final Mutation mutation) {
+		return new Callable<Void>() {
+			public Void call() {
+				FlickrException failure = null;
+				try {
+					Request req = new Request(Request.POST);
+					req.setParameter("method",mutation.method);
+					for (Map.Entry<String,String> param : mutation.params.entrySet()) {
+						req.setParameter(param.getKey(), param.getValue());
+					}
+					req.getResponse();
+					changed(mutation);
+				} catch (FlickrException ex) {
+					failure = ex;
+				} catch (RuntimeException ex) {
+					failure = new FlickrException("Error sending "+mutation.method, ex);
+				}
+				done(mutation, failure);
+				return null;
+			}
+		};
+	}
+
+	// Evict the cached reads a change sent made stale
+	private static void changed(Mutation mutation) {
+		String method = mutation.method;
+		if (method.startsWith("flickr.photosets.")) {
+			String setId = mutation.params.get("photoset_id");
+			ReadCache.changed(ReadCache.setMeta(setId), ReadCache.setPhotos(setId));
+		} else if (method.startsWith("flickr.favorites.")) {
+			ReadCache.changed(ReadCache.favorites);
+		} else if (method.startsWith("flickr.groups.pools.")) {
+			ReadCache.changed(ReadCache.groupPool(mutation.params.get("group_id")));
+		}
+	}
+
+	// Complete the futures of a change, and mark it done in the log unless it
+	// failed in a way sending it again may fix
+	private void done(Mutation mutation, FlickrException failure) {
+		if (failure != null) {
+			Logger.global.warning("Can't send "+mutation.method+" "+mutation.params+": "+failure.getMessage());
+		}
+		synchronized (this) {
+			// A RuntimeException is a bug, not an outage
+			boolean retry = failure != null && logFile != null && PhotoSet.isRetryable(failure)
+					&& !(failure.getCause() instanceof RuntimeException);
+			if (!retry) {
+				for (Long seq : mutation.seqs) {
+					appendLogQuietly("A\t"+seq);
+				}
+			}
+			if (failure == null) {
+				// An earlier failed change this one overrides is no longer to be sent
+				Mutation stale = failed.get(mutation.key);
+				if (stale != null && mutation.params.keySet().containsAll(stale.params.keySet())) {
+					failed.remove(mutation.key);
+					for (Long seq : stale.seqs) {
+						appendLogQuietly("A\t"+seq);
+					}
+				}
+			} else if (retry) {
+				Mutation stale = failed.put(mutation.key, mutation);
+				if (stale != null) {
+					// Only the last failed change is sent again: keep what the earlier one set
+					if (stale.method.equals(mutation.method)) {
+						for (Map.Entry<String,String> param : stale.params.entrySet()) {
+							if (!mutation.params.containsKey(param.getKey())) mutation.params.put(param.getKey(), param.getValue());
+						}
+					}
+					for (Long seq : stale.seqs) {
+						appendLogQuietly("A\t"+seq);
+					}
+				}
+			}
+		}
+		for (CompletableFuture<Void> future : mutation.futures) {
+			if (failure == null) {
+				future.complete(null);
+			} else {
+				future.completeExceptionally(failure);
+			}
+		}
+	}
+
+	// Queue again the changes of the log not marked as done
+	private void recover() throws FlickrException {
+		TreeMap<Long,String[]> unsent = new TreeMap<Long,String[]>();
+		if (logFile.exists()) {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "UTF-8"));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						String[] fields = line.split("\t", -1);
+						try {
+							if (fields[0].equals("M") && fields.length == 5) {
+								unsent.put(Long.parseLong(fields[1]), fields);
+							} else if (fields[0].equals("A") && fields.length == 2) {
+								unsent.remove(Long.parseLong(fields[1]));
+							}
+						} catch (NumberFormatException nfe) {
+							// A line cut by a crash
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException ex) {
+				throw new FlickrException("Can't read mutation log "+logFile, ex);
+			}
+		}
+
+		// Start a new log with the changes still to send
+		synchronized (this) {
+			List<String> lines = new ArrayList<String>(unsent.size());
+			for (String[] fields : unsent.values()) {
+				lines.add("M\t"+(nextSeq + lines.size())+"\t"+fields[2]+"\t"+fields[3]+"\t"+fields[4]);
+			}
+			replaceLog(lines);
+			for (String[] fields : unsent.values()) {
+				merge(decode(fields[2]), fields[3], decodeParams(fields[4]), nextSeq++);
+			}
+		}
+		if (!unsent.isEmpty()) Logger.global.info("Sending again "+unsent.size()+" changes from "+logFile);
+	}
+
+	// Nothing left to send: start the log over, with the changes that failed
+	private void compactLog() {
+		if (log == null) return;
+		List<String> lines = new ArrayList<String>(failed.size());
+		for (Mutation mutation : failed.values()) {
+			lines.add("M\t"+(nextSeq + lines.size())+"\t"+encode(mutation.key)+"\t"+mutation.method+"\t"+encode(mutation.params));
+		}
+		try {
+			replaceLog(lines);
+		} catch (FlickrException ex) {
+			// The old log still holds everything
+			Logger.global.warning(ex.getMessage());
+			return;
+		}
+		for (Mutation mutation : failed.values()) {
+			mutation.seqs.clear();
+			mutation.seqs.add(nextSeq++);
+		}
+	}
+
+	// Replace the log with the given lines, so that a crash leaves either the
+	// old log or the new one
+	private void replaceLog(List<String> lines) throws FlickrException {
+		try {
+			File directory = logFile.getAbsoluteFile().getParentFile();
+			File tmp = File.createTempFile(logFile.getName(), ".tmp", directory);
+			try {
+				FileOutputStream tmpOut = new FileOutputStream(tmp);
+				try {
+					Writer out = new BufferedWriter(new OutputStreamWriter(tmpOut, "UTF-8"));
+					for (String line : lines) {
+						out.write(line);
+						out.write('\n');
+					}
+					out.flush();
+					tmpOut.getFD().sync();
+				} finally {
+					tmpOut.close();
+				}
+				closeLog();
+				Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tmp.delete();
+			}
+		} catch (IOException ex) {
+			throw new FlickrException("Can't write mutation log "+logFile, ex);
+		}
+	}
+
+	private void openLog() throws FlickrException {
+		try {
+			logOut = new FileOutputStream(logFile, true);
+			log = new BufferedWriter(new OutputStreamWriter(logOut, "UTF-8"));
+		} catch (IOException ex) {
+			throw new FlickrException("Can't open mutation log "+logFile, ex);
+		}
+	}
+
+	private void closeLog() {
+		if (log == null) return;
+		try {
+			log.close();
+		} catch (IOException ex) {
+			Logger.global.warning("Can't close mutation log "+logFile+": "+ex.getMessage());
+		}
+		log = null;
+		logOut = null;
+	}
+
+	private void appendLog(String line) throws FlickrException {
+		if (logFile == null) return;
+		if (log == null) openLog();
+		try {
+			log.write(line);
+			log.write('\n');
+			log.flush();
+			// On disk before the change is queued or marked done
+			logOut.getFD().sync();
+		} catch (IOException ex) {
+			throw new FlickrException("Can't write mutation log "+logFile, ex);
+		}
+	}
+
+	// A change sent twice after a crash is harmless, a lost one isn't
+	private void appendLogQuietly(String line) {
+		try {
+			appendLog(line);
+		} catch (FlickrException ex) {
+			Logger.global.warning(ex.getMessage());
+		}
+	}
+
+	private static String encode(Map<String,String> params) {
+		StringBuilder encoded = new StringBuilder();
+		for (Map.Entry<String,String> param : params.entrySet()) {
+			if (encoded.length() > 0) encoded.append('&');
+			encoded.append(encode(param.getKey())).append('=').append(encode(param.getValue()));
+		}
+		return encoded.toString();
+	}
+
+	private static Map<String,String> decodeParams(String encoded) {
+		Map<String,String> params = new HashMap<String,String>();
+		if (encoded.length() == 0) return params;
+		for (String param : encoded.split("&")) {
+			int equals = param.indexOf('=');
+			if (equals < 0) continue;
+			params.put(decode(param.substring(0, equals)), decode(param.substring(equals + 1)));
+		}
+		return params;
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new Error("Missing UTF-8 encoding", ex);
+		}
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new Error("Missing UTF-8 encoding", ex);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package org.jickr;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a lazy loader exactly once per object, however many threads ask for it.
+ * This is an implementation class, not intended for general use.
+ *
+ * The first caller runs the load; concurrent callers wait on the same in-flight
+ * future instead of sending a duplicate request.  Once loaded, callers only read
+ * a volatile flag, so they never contend.  Fields written by the loader are
+ * safely published to every caller of load().  A failed load is not cached:
+ * the callers waiting on it get the exception, and the next call tries again.
+ */
+final class OnceLoader {
+
+	/**
+	 * The actual loading work.
+	 */
+	interface Loader {
+		void load() throws FlickrException;
+	}
+
+	private volatile boolean done = false;
+	private final AtomicReference<FutureTask<Void>> inFlight = new AtomicReference<FutureTask<Void>>();
+
+	/**
+	 * Whether the load completed successfully.
+	 * @return true once loaded
+	 */
+	boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Run the loader if nobody did yet, or wait for the load in progress.
+	 * @param loader the loading work
+	 * @throws FlickrException if the load failed
+	 */
+	void load(final Loader loader) throws FlickrException {
+		while (!done) {
+			FutureTask<Void> task = inFlight.get();
+			if (task == null) {
+				FutureTask<Void> mine = new FutureTask<Void>(new Callable<Void>() {
+					public Void call() throws FlickrException {
+						loader.load();
+						done = true;
+						return null;
+					}
+				});
+				if (!inFlight.compareAndSet(null, mine)) continue;
+				mine.run();
+				task = mine;
+			}
+			try {
+				task.get();
+			} catch (ExecutionException ee) {
+				// Let the next caller try again
+				inFlight.compareAndSet(task, null);
+				Throwable cause = ee.getCause();
+				if (cause instanceof FlickrException) throw (FlickrException) cause;
+				if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+				if (cause instanceof Error) throw (Error) cause;
+				throw new FlickrException("Error loading: "+cause, cause);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new FlickrException("Interrupted while waiting for load", ie);
+			}
+		}
+	}
+}
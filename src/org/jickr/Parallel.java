@@ -0,0 +1,89 @@
+package org.jickr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs independent Flickr calls concurrently.  This is an implementation class,
+ * not intended for general use.
+ *
+ * Tasks run under the AuthContext of the calling thread, each one after taking
+ * a permit from the optional RateLimiter.  The call returns once every task is
+ * done.
+ */
+final class Parallel {
+
+	private Parallel() {
+	}
+
+	/**
+	 * Run the tasks, at most <code>parallelism</code> at a time.
+	 *
+	 * @param tasks the calls to make
+	 * @param parallelism maximum number of concurrent calls
+	 * @param limiter rate limiter, may be null
+	 * @return the results, in the order of the tasks
+	 * @throws FlickrException the first failure, once every task is done
+	 */
+	static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int parallelism, final RateLimiter limiter) throws FlickrException {
+		if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be positive");
+		List<T> results = new ArrayList<T>(tasks.size());
+		if (tasks.isEmpty()) return results;
+
+		final User user = Auth.getAuthContext();
+		List<Callable<T>> wrapped = new ArrayList<Callable<T>>(tasks.size());
+		for (final Callable<T> task : tasks) {
+			wrapped.add(new Callable<T>() {
+				public T call() throws Exception {
+					if (user != null) Auth.setAuthContext(user);
+					try {
+						if (limiter != null) limiter.acquire();
+						return task.call();
+					} finally {
+						if (user != null) Auth.resetAuthContext();
+					}
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jickr-parallel");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			FlickrException failure = null;
+			for (Future<T> future : executor.invokeAll(wrapped)) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException ee) {
+					results.add(null);
+					if (failure != null) continue;
+					Throwable cause = ee.getCause();
+					if (cause instanceof FlickrException) {
+						failure = (FlickrException) cause;
+					} else if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else {
+						failure = new FlickrException("Error in concurrent call: "+cause, cause);
+					}
+				}
+			}
+			if (failure != null) throw failure;
+			return results;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new FlickrException("Interrupted while waiting for concurrent calls", ie);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -24,17 +24,27 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
 import javax.imageio.ImageIO;
 
+import org.jdom.Attribute;
 import org.jdom.DataConversionException;
 import org.jdom.Document;
 import org.jdom.Element;
@@ -262,6 +272,34 @@ public class Photo implements Comparable <Photo>{
 		}
 	}
     
+    /**
+     * Lazily loaded parts of a Photo, used for batch hydration.
+     * @see org.jickr.Photo#hydrate(Collection, EnumSet)
+     */
+    public enum Field {
+        /**
+         * Information from flickr.photos.getInfo: description, tags, media, comments, permissions...
+         */
+        INFO,
+        /**
+         * Available sizes and their URLs, from flickr.photos.getSizes.
+         */
+        SIZES,
+        /**
+         * Permissions, from flickr.photos.getPerms.  Already loaded along with INFO.
+         */
+        PERMS
+    }
+    
+    // Interestingness lists by date, null if not used
+    private static volatile InterestingnessStore interestingnessStore = null;
+    
+    // Cache of search result pages, null if not used
+    private static volatile SearchCache searchCache = null;
+    
+    // Off-heap metadata, null if not used
+    private static volatile PhotoMetadataStore metadataStore = null;
+    
     // Queue to store cache
     private static PriorityQueue<Photo> photoCache = new PriorityQueue<Photo>();
     // Current size of cache
@@ -274,22 +312,34 @@ public class Photo implements Comparable <Photo>{
     private BufferedImage image = null;
     private Size imageSize = null;
  
-    private Map<Size,PhotoSize> sizes = new EnumMap<Size, PhotoSize>(Size.class);
+    // Replaced once by an unmodifiable map when loaded
+    private volatile Map<Size,PhotoSize> sizes = Collections.emptyMap();
     
-    private String id;
-    private String secret;
-    private String server;
-    private String title;
+    // Photos are shared through PhotoIdentityMap, possibly between threads
+    private volatile String id;
+    private volatile String secret;
+    private volatile String server;
+    private volatile String title;
     private Media media;
-    private PhotoPermissions perms = null;
+    private volatile PhotoPermissions perms = null;
     private SafetyLevel safety_level;
     private LicenseType licence;
     
-    // Boolean to track if we've gotten the extra information associated with a Photo
-    private boolean gotInfo = false;
+    // Track if we've gotten the extra information associated with a Photo.
+    // Each loader runs at most once, even when the Photo is shared between threads.
+    private final OnceLoader infoLoader = new OnceLoader();
+    private final OnceLoader sizesLoader = new OnceLoader();
+    private final OnceLoader permsLoader = new OnceLoader();
     
     private String description;
-    private int numComments;
+    private volatile int numComments;
+    private List<String> tags;
+    
+    // Extras sent with the list the photo came from, replaced as a whole; null if none
+    private volatile Map<String,String> extras = null;
+    // Attributes of every photo of a list, not extras
+    private static final Set<String> listAttributes = new HashSet<String>(Arrays.asList(
+            "id", "owner", "secret", "server", "farm", "title", "ispublic", "isfriend", "isfamily", "isprimary"));
     
     Photo(Element photo) {
         if (photo == null) throw new FlickrRuntimeException("Can't construct Photo from null");
@@ -297,7 +347,61 @@ public class Photo implements Comparable <Photo>{
         this.id = photo.getAttributeValue("id");
         this.secret = photo.getAttributeValue("secret");
         this.title = photo.getAttributeValue("title");
-        
+        this.extras = readExtras(photo, null);
+    }
+    
+    /**
+     * Creates a Photo from the values stored by a CompactPhotoList.
+     */
+    Photo(String id, String secret, String server, String title) {
+        this.id = id;
+        this.secret = secret;
+        this.server = server;
+        this.title = title;
+    }
+    
+    /**
+     * Complete this Photo with the attributes of another photo element of the
+     * same ID, typically from another list.  Known values are kept.
+     */
+    void merge(Element photo) {
+        if (secret == null) secret = photo.getAttributeValue("secret");
+        if (server == null) server = photo.getAttributeValue("server");
+        if (title == null) title = photo.getAttributeValue("title");
+        Map<String,String> merged = readExtras(photo, extras);
+        if (merged != null) extras = merged;
+    }
+    
+    // Extras of a photo element added to the known ones, null if none at all
+    private static Map<String,String> readExtras(Element photo, Map<String,String> known) {
+        Map<String,String> read = null;
+        for (Attribute attribute : (List<Attribute>) photo.getAttributes()) {
+            if (listAttributes.contains(attribute.getName())) continue;
+            if (read == null) read = known == null ? new HashMap<String,String>() : new HashMap<String,String>(known);
+            read.put(attribute.getName(), attribute.getValue());
+        }
+        // The description extra is a child element
+        String description = photo.getChildText("description");
+        if (description != null) {
+            if (read == null) read = known == null ? new HashMap<String,String>() : new HashMap<String,String>(known);
+            read.put("description", description);
+        }
+        return read == null ? null : Collections.unmodifiableMap(read);
+    }
+    
+    /**
+     * Get an extra value sent with the list the photo came from, as asked with
+     * <code>PhotoSearch.setExtras</code>.  Values are the raw strings of Flickr:
+     * the extra "date_upload" for instance comes as "dateupload", a number of
+     * seconds, and "url_m" comes with "width_m" and "height_m".  Compact lists
+     * don't keep extras.
+     * @param name name of the value in the list, for instance "views", "url_m"
+     * or "description"
+     * @return the value, null if not sent
+     */
+    public String getExtra(String name) {
+        Map<String,String> known = extras;
+        return known == null ? null : known.get(name);
     }
     
     
@@ -321,18 +425,36 @@ public class Photo implements Comparable <Photo>{
      * @throws FlickrException For any error.
      */
     public static String uploadNewPhoto(PhotoUpload photoUpload) throws FlickrException{
-    	return uploadNewPhoto(photoUpload, null);
+    	return uploadNewPhoto(photoUpload, (RequestProgress) null);
     }
     
     public static String uploadNewPhoto(PhotoUpload photoUpload, RequestListener listener) throws FlickrException{
+    	RequestProgress progress = null;
+    	if (listener != null) {
+    		progress = new RequestProgress();
+    		progress.addRequestListener(listener);
+    	}
+    	return uploadNewPhoto(photoUpload, progress);
+    }
+    
+    /**
+     * Utility method for uploading new photos to Flickr, reporting the upload
+     * progress.
+     * 
+     * @param photoUpload informations needed to upload
+     * @param progress upload progress, notifying its listeners. May be null.
+     * @return id of photo uploaded or ticket id (if async mode)
+     * @throws FlickrException For any error.
+     */
+    public static String uploadNewPhoto(PhotoUpload photoUpload, RequestProgress progress) throws FlickrException{
     	if (photoUpload == null) throw new FlickrException("Can't upload a photo without PhotoUpload");
-    	if (photoUpload.getPhoto() == null) throw new FlickrException("Can't upload a photo from null PhotoUpload.photo");
+    	if (photoUpload.getSource() == null) throw new FlickrException("Can't upload a photo from null PhotoUpload.photo");
     	
     	// Generate the request
     	Request req = new Request(Request.POST, Flickr.getUploadURL());
-    	if (listener!=null) req.addRequestListener(listener);
+    	req.setProgress(progress);
     	// Set parameters of the request
-    	req.setParameter("photo", photoUpload.getPhoto());
+    	req.setParameter("photo", photoUpload.getSource());
     	if (!photoUpload.getTitle().equals(""))
     		req.setParameter("title", photoUpload.getTitle());
     	if (!photoUpload.getDescription().equals(""))
@@ -346,7 +468,8 @@ public class Photo implements Comparable <Photo>{
     		} else {
     			tagsString += " ";    			
     		}
-    		tagsString += val; 
+    		// Multi-word tags must be quoted
+    		tagsString += val.indexOf(' ') >= 0 ? "\""+val+"\"" : val; 
     	}
     	if (!tagsString.equals(""))
     		req.setParameter("tags", tagsString);
@@ -380,30 +503,54 @@ public class Photo implements Comparable <Photo>{
     }
     
     
-    public static void checkTicket (String ticketid) throws FlickrException {
+    /**
+     * Check the status of an asynchronous upload ticket.
+     * 
+     * @param ticketid ticket id returned by an async upload
+     * @return the ticket status
+     * @throws FlickrException For any error.
+     * @see org.jickr.TicketTracker
+     */
+    public static Ticket checkTicket (String ticketid) throws FlickrException {
     	if (ticketid == null) throw new FlickrException("Can't check ticket without ticket id");
     	
+    	List<Ticket> tickets = checkTickets(Collections.singletonList(ticketid));
+    	if (tickets.isEmpty()) throw new FlickrException("No ticket returned for id "+ticketid);
+    	return tickets.get(0);
+    }
+    
+    /**
+     * Check the status of several asynchronous upload tickets with a single
+     * flickr.photos.upload.checkTickets call.
+     * 
+     * @param ticketids ticket ids returned by async uploads
+     * @return the tickets status, in the order returned by Flickr
+     * @throws FlickrException For any error.
+     */
+    public static List<Ticket> checkTickets (Collection<String> ticketids) throws FlickrException {
+    	if (ticketids == null) throw new FlickrException("Can't check tickets without ticket ids");
+    	
+    	StringBuilder ids = new StringBuilder();
+    	for (String ticketid : ticketids) {
+    		if (ids.length() > 0) ids.append(',');
+    		ids.append(ticketid);
+    	}
+    	
     	Request req = new Request();
     	req.setParameter("method", "flickr.photos.upload.checkTickets");
-    	req.setParameter("tickets", ticketid);
+    	req.setParameter("tickets", ids.toString());
     	
     	Document doc = req.getResponse();
-    	Element ticket = doc.getRootElement().getChild("uploader").getChild("ticket");
-//    	for (Element e : tickets){
-//    		System.out.println("id: "+e.getAttributeValue("id"));
-//    		if (e.getAttribute("complete")!=null){
-//    			System.out.println("complete: "+e.getAttributeValue("complete"));
-//    		}
-//    		if (e.getAttribute("invalid")!=null){
-//    			System.out.println("invalid: "+e.getAttributeValue("invalid"));
-//    		}
-//    		if (e.getAttribute("imported")!=null){
-//    			System.out.println("imported: "+e.getAttributeValue("imported"));
-//    		}
-//    		if (e.getAttribute("photoid")!=null){
-//    			System.out.println("photoid: "+e.getAttributeValue("photoid"));
-//    		}
-//    	}
+    	List<Ticket> tickets = new ArrayList<Ticket>();
+    	try {
+    		List<Element> elements = doc.getRootElement().getChild("uploader").getChildren("ticket");
+    		for (Element e : elements) {
+    			tickets.add(new Ticket(e));
+    		}
+    	} catch (NullPointerException npe) {
+    		throw new FlickrException("Oddly formed XML error",npe);
+    	}
+    	return tickets;
     }
     
     /**
@@ -418,13 +565,28 @@ public class Photo implements Comparable <Photo>{
      * @throws FlickrException For any error.
      */
     public static String uploadAndReplacePhoto(String idPhotoToReplace, File newPhotoFile, Boolean async) throws FlickrException{
-    	if (idPhotoToReplace == null) throw new FlickrException("Can't replace a photo without its id");
     	if (newPhotoFile == null) throw new FlickrException("Can't replace a photo without a new file");
+    	return uploadAndReplacePhoto(idPhotoToReplace, UploadSource.fromFile(newPhotoFile), async);
+    }
+    
+    /**
+     * Utility method for uploading and replace an existing photo to Flickr, from
+     * any upload source.
+     * 
+     * @param idPhotoToReplace id of the photo to relpace
+     * @param newPhoto content of the new photo
+     * @param async connection type (synchronous or asynchronous)
+     * @return the Flickr id of the new photo
+     * @throws FlickrException For any error.
+     */
+    public static String uploadAndReplacePhoto(String idPhotoToReplace, UploadSource newPhoto, Boolean async) throws FlickrException{
+    	if (idPhotoToReplace == null) throw new FlickrException("Can't replace a photo without its id");
+    	if (newPhoto == null) throw new FlickrException("Can't replace a photo without a new file");
     	
     	// Generate the request
     	Request req = new Request(Request.POST, Flickr.getReplaceURL());
     	// Set parameters of the request
-    	req.setParameter("photo", newPhotoFile);
+    	req.setParameter("photo", newPhoto);
     	req.setParameter("photo_id", idPhotoToReplace);
     	if (async != null)
     		req.setParameter("async", async ? "1" : "0");
@@ -437,12 +599,18 @@ public class Photo implements Comparable <Photo>{
     
     /**
      * Get a photo, provided you have the Photo's id, and secret key.
+     * If the photo is already in use, for instance from a PhotoList, that same
+     * Photo object is returned.
      * @return The Photo object described by the key and secret.
      */
     public static Photo findByID(String id, String secret) throws FlickrException {
         if (id == null) throw new FlickrRuntimeException("Can't construct Photo from null id");
         if (secret == null) throw new FlickrRuntimeException("Can't construct Photo from null secret");
-        return new Photo(id,secret);
+        Photo photo = PhotoIdentityMap.get(id);
+        if (photo == null) return PhotoIdentityMap.intern(new Photo(id,secret));
+        if (photo.secret == null) photo.secret = secret;
+        photo.getInfo();
+        return photo;
     }
     
     /**
@@ -481,6 +649,24 @@ public class Photo implements Comparable <Photo>{
      * @throws FlickrExcpetion For any error.
      */
     public static List<Photo> search(PhotoSearch search) throws FlickrException {
+        return new PhotoList(searchRequest(search));
+    }
+    
+    /**
+     * Get every Photo matching the <code>PhotoSearch</code> term, in a compact list.
+     * Unlike <code>search(PhotoSearch)</code>, all the pages are fetched, and the
+     * list only keeps a few bytes per photo: the Photo objects are created on
+     * demand by <code>get(int)</code>.  Suited to crawls of millions of photos.
+     * @param search The PhotoSearch object that contains the search terms.
+     * @return A list of every photo matching the search.
+     * @throws FlickrException on any error
+     */
+    public static List<Photo> searchCompact(PhotoSearch search) throws FlickrException {
+        return new CompactPhotoList(searchRequest(search), 0);
+    }
+    
+    // flickr.photos.search request for the search terms
+    static Request searchRequest(PhotoSearch search) throws FlickrException {
         if (search == null) throw new FlickrRuntimeException("Search term cannot be null");
         
         boolean termUsed = false;
@@ -498,12 +684,12 @@ public class Photo implements Comparable <Photo>{
             req.setParameter("tags",search.getTags());
             if (search.getTagMode() != null) {
                 if (search.getTagMode() == PhotoSearch.Tagmode.ALL) {
-                    req.setParameter("tagmode","all");
+                    req.setParameter("tag_mode","all");
                 } else { // ANY
-                    req.setParameter("tagmode","any");
+                    req.setParameter("tag_mode","any");
                 }
             } else { // Default is ANY
-                    req.setParameter("tagmode","any");                
+                    req.setParameter("tag_mode","any");                
             }
         }
         
@@ -533,15 +719,145 @@ public class Photo implements Comparable <Photo>{
             }
         }
         
+        // Upload dates are unix timestamps, taken dates are MySQL datetimes
+        if (search.getMinUploadDate() != null) {
+            termUsed = true;
+            req.setParameter("min_upload_date",Long.toString(search.getMinUploadDate().getTime() / 1000));
+        }
+        if (search.getMaxUploadDate() != null) {
+            termUsed = true;
+            req.setParameter("max_upload_date",Long.toString(search.getMaxUploadDate().getTime() / 1000));
+        }
+        if (search.getMinTakenDate() != null) {
+            termUsed = true;
+            req.setParameter("min_taken_date",takenFormat().format(search.getMinTakenDate()));
+        }
+        if (search.getMaxTakenDate() != null) {
+            termUsed = true;
+            req.setParameter("max_taken_date",takenFormat().format(search.getMaxTakenDate()));
+        }
+        
+        if (search.getLicenses() != null && !search.getLicenses().isEmpty()) {
+            termUsed = true;
+            StringBuilder licenses = new StringBuilder();
+            for (LicenseType license : search.getLicenses()) {
+                if (licenses.length() > 0) licenses.append(',');
+                licenses.append(license.getXmlValue());
+            }
+            req.setParameter("license",licenses.toString());
+        }
+        
+        if (search.getBoundingBox() != null) {
+            termUsed = true;
+            double[] bbox = search.getBoundingBox();
+            req.setParameter("bbox",bbox[0]+","+bbox[1]+","+bbox[2]+","+bbox[3]);
+        } else if (search.getLocation() != null) {
+            termUsed = true;
+            double[] location = search.getLocation();
+            req.setParameter("lat",Double.toString(location[0]));
+            req.setParameter("lon",Double.toString(location[1]));
+            req.setParameter("radius",Double.toString(location[2]));
+            req.setParameter("radius_units","km");
+        }
+        
+        // Filters narrowing a search, not search conditions on their own
+        if (search.getMedia() != null) {
+            req.setParameter("media",search.getMedia() == Media.VIDEO ? "videos" : "photos");
+        }
+        // Search values are 1 for photos, 2 for screenshots and 3 for other
+        if (search.getContentType() != null) {
+            switch (search.getContentType()) {
+                case PHOTO_VIDEO:
+                    req.setParameter("content_type","1");
+                    break;
+                case SCREENSHOT_SCREENCAST:
+                    req.setParameter("content_type","2");
+                    break;
+                case ILLUSTRATION_ART_ANIMATION:
+                    req.setParameter("content_type","3");
+                    break;
+            }
+        }
+        // Search values start at 1, where upload values start at 0
+        if (search.getSafeSearch() != null) {
+            req.setParameter("safe_search",Integer.toString(search.getSafeSearch().getXmlValue() + 1));
+        }
+        if (search.getSort() != null) {
+            req.setParameter("sort",search.getSort().getXmlValue());
+        }
+        if (search.getExtras() != null) {
+            req.setParameter("extras",search.getExtras());
+        }
+        if (search.getPerPage() != 0) {
+            req.setParameter("per_page",Integer.toString(search.getPerPage()));
+        }
+        
         if (!termUsed) throw new FlickrRuntimeException("Search object must contain a search condition");
 
-        return new PhotoList(req);
+        return req;
+    }
+    
+    // Format of the taken dates of Flickr
+    static SimpleDateFormat takenFormat() {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    }
+    
+    /**
+     * Load the given fields of many photos at once, with 8 concurrent calls.
+     * @see org.jickr.Photo#hydrate(Collection, EnumSet, int, RateLimiter)
+     */
+    public static void hydrate(Collection<Photo> photos, EnumSet<Field> fields) throws FlickrException {
+        hydrate(photos, fields, 8, null);
+    }
+    
+    /**
+     * Load the given fields of many photos at once, instead of one round trip per
+     * photo the first time a getter is called.  Photos already holding a field
+     * are skipped.  Returns once every photo is populated.
+     *
+     * @param photos The photos to load.
+     * @param fields The fields to load.
+     * @param parallelism Maximum number of concurrent calls to Flickr.
+     * @param limiter Rate limiter shared with other callers, may be null.
+     * @throws FlickrException The first error, once every call is done.
+     */
+    public static void hydrate(Collection<Photo> photos, EnumSet<Field> fields, int parallelism, RateLimiter limiter) throws FlickrException {
+        if (photos == null) throw new NullPointerException("photos cannot be null");
+        if (fields == null) throw new NullPointerException("fields cannot be null");
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Photo photo : photos) {
+            if (fields.contains(Field.INFO) && !photo.infoLoader.isDone()) {
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws FlickrException {
+                        photo.getInfo();
+                        return null;
+                    }
+                });
+            } else if (fields.contains(Field.PERMS) && photo.perms == null) {
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws FlickrException {
+                        photo.initPerms();
+                        return null;
+                    }
+                });
+            }
+            if (fields.contains(Field.SIZES) && !photo.sizesLoader.isDone()) {
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws FlickrException {
+                        photo.initSizes();
+                        return null;
+                    }
+                });
+            }
+        }
+        Parallel.invokeAll(tasks, parallelism, limiter);
     }
     
     /**
      * Gets a list of the most recent photos on Flickr.
      *
      * @return A <code>PhotoList</code> of Flickr's recent photos
+     * @see org.jickr.RecentPhotoStream
      */
     public static List<Photo> getRecentPhotos() throws FlickrException {
         Request req = new Request();
@@ -567,6 +883,8 @@ public class Photo implements Comparable <Photo>{
      * @return A <code>PhotoList</code> of FJickrs interesting photos.
      */
     public static PhotoList getInteresting(Calendar cal) throws FlickrException {
+        InterestingnessStore store = interestingnessStore;
+        if (store != null) return new PhotoList(store.get(cal));
         Request req = new Request();
         req.setParameter("method","flickr.interestingness.getList");
         String date = String.format("%1tY-%1tm-%1td",cal);
@@ -644,6 +962,15 @@ public class Photo implements Comparable <Photo>{
         return numComments;
     }
     
+    /**
+     * Get the tags of this photo, as entered by the owner.
+     * @return The list of raw tags for this Photo.
+     */
+    public List<String> getTags() throws FlickrException {
+        getInfo();
+        return tags;
+    }
+    
     /**
      * Get a BufferedImage of this photo (default size).
      * @return image Image of this photo.
@@ -872,6 +1199,14 @@ public class Photo implements Comparable <Photo>{
      * @throws FlickrException in the event of any error.
      */
     public List<Comment> getComments() throws FlickrException {
+        ReadCache cache = Flickr.getReadCache();
+        String key = cache == null ? null : ReadCache.key("photo.comments", id);
+        if (cache != null) {
+            List<Comment> cached = (List<Comment>) cache.get(key);
+            if (cached != null) return new ArrayList<Comment>(cached);
+        }
+        long stamp = cache == null ? 0 : cache.stamp();
+        
         List<Comment> commentList = new ArrayList();
         Request req = new Request();
         req.setParameter("method","flickr.photos.comments.getList");
@@ -882,8 +1217,9 @@ public class Photo implements Comparable <Photo>{
         
         List<Element> comments = root.getChild("comments").getChildren("comment");
         for (Element comment: comments) {
-            commentList.add(new Comment(Comment.Type.PHOTOCOMMENT,comment));
+            commentList.add(new Comment(Comment.Type.PHOTOCOMMENT,id,comment));
         }
+        if (cache != null) cache.put(key, new ArrayList<Comment>(commentList), stamp, Collections.singletonList(ReadCache.photoComments(id)));
         return commentList;
     }
     
@@ -910,6 +1246,8 @@ public class Photo implements Comparable <Photo>{
         req.setParameter("comment_text",commentText);
         
         Element root = req.getResponse().getRootElement();
+        ReadCache.changed(ReadCache.photoComments(id));
+        commentsChanged(1);
         
         try {
             String commentID = root.getChild("comment").getAttributeValue("id");
@@ -932,6 +1270,7 @@ public class Photo implements Comparable <Photo>{
         req.setParameter("method","flickr.favorites.add");
         req.setParameter("photo_id",id);
         req.getResponse(); // Empty Response except for status
+        ReadCache.changed(ReadCache.favorites);
     }
     
     /**
@@ -943,43 +1282,130 @@ public class Photo implements Comparable <Photo>{
         req.setParameter("method","flickr.favorites.remove");
         req.setParameter("photo_id",id);
         req.getResponse(); // Empty Response except for status        
+        ReadCache.changed(ReadCache.favorites);
+    }
+    
+    /**
+     * Update the comment count, in this Photo if its info is loaded, and in
+     * the metadata store if it holds the info.
+     */
+    void commentsChanged(int delta) {
+        if (infoLoader.isDone()) {
+            synchronized (this) {
+                numComments += delta;
+            }
+        }
+        PhotoMetadataStore store = metadataStore;
+        long key = store == null ? -1 : storeKey();
+        Element info = key > 0 ? store.getInfo(key) : null;
+        if (info == null || info.getChild("comments") == null) return;
+        try {
+            int count = Integer.parseInt(info.getChildText("comments"));
+            info.getChild("comments").setText(Integer.toString(Math.max(0, count + delta)));
+            store.putInfo(key, info);
+        } catch (NumberFormatException nfe) {
+            // Leave it, it will be wrong until the store is rebuilt
+        }
     }
     
     private void getInfo() throws FlickrException {
-        if (gotInfo) return;
-        
-        Request req = new Request();
-        req.setParameter("method","flickr.photos.getInfo");
-        req.setParameter("photo_id",id);
-        req.setParameter("secret",secret);
-        Document doc = req.getResponse();
-        Element root = doc.getRootElement();
+        if (infoLoader.isDone()) return;
+        infoLoader.load(new OnceLoader.Loader() {
+            public void load() throws FlickrException {
+                loadInfo();
+            }
+        });
+    }
+    
+    private void loadInfo() throws FlickrException {
+        PhotoMetadataStore store = metadataStore;
+        long key = store == null ? -1 : storeKey();
+        Element info = key > 0 ? store.getInfo(key) : null;
+        if (info == null) {
+            Request req = new Request();
+            req.setParameter("method","flickr.photos.getInfo");
+            req.setParameter("photo_id",id);
+            req.setParameter("secret",secret);
+            Document doc = req.getResponse();
+            info = doc.getRootElement().getChild("photo");
+            if (key > 0 && info != null) store.putInfo(key, info);
+        }
         
         try {
-            this.id = root.getChild("photo").getAttributeValue("id");
-            this.secret = root.getChild("photo").getAttributeValue("secret");
-            this.server = root.getChild("photo").getAttributeValue("server");
-            this.title = root.getChild("photo").getChildText("title");
-            this.description = root.getChild("photo").getChildText("description");
-            this.numComments = Integer.parseInt(root.getChild("photo").getChildText("comments"));
-            this.media = Media.valueOf(root.getChild("photo").getAttributeValue("media").toUpperCase());
+            this.id = info.getAttributeValue("id");
+            this.secret = info.getAttributeValue("secret");
+            this.server = info.getAttributeValue("server");
+            this.title = info.getChildText("title");
+            this.description = info.getChildText("description");
+            this.numComments = Integer.parseInt(info.getChildText("comments"));
+            this.media = Media.valueOf(info.getAttributeValue("media").toUpperCase());
+            
+            // Tags, as entered by the owner
+            List<String> tagList = new ArrayList<String>();
+            Element tagsElement = info.getChild("tags");
+            if (tagsElement != null) {
+                for (Element tag : (List<Element>) tagsElement.getChildren("tag")) {
+                    String raw = tag.getAttributeValue("raw");
+                    tagList.add(raw != null ? raw : tag.getText());
+                }
+            }
+            this.tags = Collections.unmodifiableList(tagList);
             
             // Permission
-            perms = new PhotoPermissions(root.getChild("photo"));
+            perms = new PhotoPermissions(info);
             
             // Safety level
-            safety_level = SafetyLevel.getEnumFromValue(Integer.parseInt(root.getChild("photo").getAttributeValue("safety_level")));
+            safety_level = SafetyLevel.getEnumFromValue(Integer.parseInt(info.getAttributeValue("safety_level")));
             
             // Licence
-            licence = LicenseType.getEnumFromValue(Integer.parseInt(root.getChild("photo").getAttributeValue("license")));
+            licence = LicenseType.getEnumFromValue(Integer.parseInt(info.getAttributeValue("license")));
             
         } catch (NullPointerException npe) {
             throw new FlickrException("Oddly formed XML error",npe);
         } catch (DataConversionException e) {
         	throw new FlickrException("Boolean conversion error for perms creation",e);
 		}
-        
-        gotInfo = true;
+    }
+    
+    // Numeric ID of the photo in the metadata store, -1 if it can't be stored
+    private long storeKey() {
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Cache the result pages of searches, including <code>findByTags</code>.
+     * Lists created afterwards are served from the cache when possible.
+     * @param cache the cache, or null to stop caching
+     */
+    public static void setSearchCache(SearchCache cache) {
+        searchCache = cache;
+    }
+    
+    static SearchCache getSearchCache() {
+        return searchCache;
+    }
+    
+    /**
+     * Serve <code>getInteresting(Calendar)</code> from a store, which keeps
+     * the lists of past days instead of fetching them every time.
+     * @param store the store, or null to always fetch from Flickr
+     */
+    public static void setInterestingnessStore(InterestingnessStore store) {
+        interestingnessStore = store;
+    }
+    
+    /**
+     * Use an off-heap store for the information and sizes of every Photo.
+     * Photos found in the store are not fetched from Flickr, and the ones
+     * fetched from Flickr are added to it.
+     * @param store the store, or null to stop using one
+     */
+    public static void setMetadataStore(PhotoMetadataStore store) {
+        metadataStore = store;
     }
     
     /**
@@ -999,11 +1425,20 @@ public class Photo implements Comparable <Photo>{
      * @return Whether a Photo object represents the same photo
      */
     public boolean equals(Object o) {
-        // TODO catch class cast exception
+        if (o == this) return true;
+        if (!(o instanceof Photo)) return false;
         Photo p = (Photo)o;
         return this.getID().equals(p.getID());
     }
     
+    /**
+     * Hash code consistent with equals, based on the photo ID.
+     * @return hash code of the ID
+     */
+    public int hashCode() {
+        return this.getID().hashCode();
+    }
+    
     /**
      * Compares a Photo's image.  Uses the Date the Photo's image object was
      * created to compare.
@@ -1024,28 +1459,51 @@ public class Photo implements Comparable <Photo>{
     
     private void initSizes() throws FlickrException {
         // Only run once.
-        if (sizes.size() != 0 ) return;
-        
-        Request req = new Request();
-        req.setParameter("method","flickr.photos.getSizes");
-        req.setParameter("photo_id",id);
-        
-        Document doc = req.getResponse();
-        Element root = doc.getRootElement();
+        if (sizesLoader.isDone()) return;
+        sizesLoader.load(new OnceLoader.Loader() {
+            public void load() throws FlickrException {
+                loadSizes();
+            }
+        });
+    }
+    
+    private void loadSizes() throws FlickrException {
+        PhotoMetadataStore store = metadataStore;
+        long key = store == null ? -1 : storeKey();
+        Element sizesElement = key > 0 ? store.getSizes(key) : null;
+        if (sizesElement == null) {
+            Request req = new Request();
+            req.setParameter("method","flickr.photos.getSizes");
+            req.setParameter("photo_id",id);
+            
+            Document doc = req.getResponse();
+            sizesElement = doc.getRootElement().getChild("sizes");
+            if (key > 0 && sizesElement != null) store.putSizes(key, sizesElement);
+        }
         
-        List<Element> photosizes = root.getChild("sizes").getChildren("size");
+        List<Element> photosizes = sizesElement.getChildren("size");
         
+        Map<Size,PhotoSize> loaded = new EnumMap<Size, PhotoSize>(Size.class);
         for (Element photosize : photosizes)  {
             PhotoSize ps = new PhotoSize(photosize);
-            sizes.put(ps.getSize(),ps);
+            loaded.put(ps.getSize(),ps);
         }
+        sizes = Collections.unmodifiableMap(loaded);
     }
     
     // init perms
-    private void initPerms() throws FlickrException, DataConversionException {
+    private void initPerms() throws FlickrException {
         // Only run once.
         if (perms != null ) return;
-        
+        permsLoader.load(new OnceLoader.Loader() {
+            public void load() throws FlickrException {
+                // getInfo may have set them meanwhile
+                if (perms == null) loadPerms();
+            }
+        });
+    }
+    
+    private void loadPerms() throws FlickrException {
         Request req = new Request();
         req.setParameter("method","flickr.photos.getPerms");
         req.setParameter("photo_id",id);
@@ -1054,8 +1512,20 @@ public class Photo implements Comparable <Photo>{
         Element root = doc.getRootElement();
         Element _perms = root.getChild("perms");
         
-        perms = new PhotoPermissions(_perms, 0);
-        
+        try {
+            perms = new PhotoPermissions(_perms, 0);
+        } catch (DataConversionException e) {
+            throw new FlickrException("Boolean conversion error for perms creation",e);
+        }
+    }
+    
+    /**
+     * Gets the PhotoSize of the given size.
+     * @return The PhotoSize, null if this photo doesn't have the size.
+     */
+    PhotoSize getPhotoSize(Size size) throws FlickrException {
+        initSizes();
+        return sizes.get(size);
     }
     
     /**
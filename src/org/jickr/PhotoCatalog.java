@@ -0,0 +1,708 @@
+package org.jickr;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jdom.Element;
+
+/**
+ * A local copy of the metadata of a user's whole library, searchable without
+ * calling Flickr.
+ *
+ * <code>sync()</code> loads the ID, title, description, tags, upload and taken
+ * dates, privacy and sets of every photo of the user.  The catalog then keeps
+ * an inverted index of tags, another of the words of titles, descriptions and
+ * tags, and sorted indexes of the upload and taken dates.
+ *
+ * <code>search(PhotoSearch)</code> runs locally when the search is about the
+ * catalog's user and only uses terms the catalog knows; other searches are
+ * sent to Flickr.  Local results are in the default Flickr order, most
+ * recently uploaded first.
+ *
+ * Searches can run concurrently with each other; updates are exclusive.
+ *
+ * Example of use:
+ * 	 PhotoCatalog catalog = new PhotoCatalog(Auth.getDefaultAuthUser());
+ * 	 catalog.sync();
+ * 	 PhotoSearch search = new PhotoSearch();
+ * 	 search.setUser(catalog.getUser());
+ * 	 search.setTags("cat,dog");
+ * 	 List&lt;Photo&gt; pets = catalog.search(search);
+ */
+public class PhotoCatalog {
+
+	// Metadata asked along with each page of photos
+	static final String extras = "description,tags,date_upload,date_taken,last_update";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Metadata of one photo.
+	 */
+	static final class Entry {
+		final String id;
+		final String secret;
+		final String server;
+		final String title;
+		final String description;
+		final String[] tags;
+		final long dateUpload;
+		final long dateTaken;
+		final long lastUpdate;
+		final Privacy privacy;
+		String[] sets = new String[0];
+
+		Entry(Element photo) {
+			this.id = photo.getAttributeValue("id");
+			this.secret = photo.getAttributeValue("secret");
+			this.server = photo.getAttributeValue("server");
+			this.title = nonNull(photo.getAttributeValue("title"));
+			// The description extra is a child element
+			String desc = photo.getChildText("description");
+			this.description = desc != null ? desc : nonNull(photo.getAttributeValue("description"));
+			String tagList = nonNull(photo.getAttributeValue("tags")).trim();
+			this.tags = tagList.length() == 0 ? new String[0] : tagList.split("\\s+");
+			this.dateUpload = parseLong(photo.getAttributeValue("dateupload")) * 1000;
+			this.dateTaken = parseTaken(photo.getAttributeValue("datetaken"));
+			this.lastUpdate = parseLong(photo.getAttributeValue("lastupdate")) * 1000;
+			this.privacy = Privacy.getEnumFromValue("1".equals(photo.getAttributeValue("ispublic")),
+					"1".equals(photo.getAttributeValue("isfamily")),
+					"1".equals(photo.getAttributeValue("isfriend")));
+		}
+
+		Entry(DataInputStream in) throws IOException {
+			this.id = readString(in);
+			this.secret = readString(in);
+			this.server = readString(in);
+			this.title = readString(in);
+			this.description = readString(in);
+			this.tags = readStrings(in);
+			this.dateUpload = in.readLong();
+			this.dateTaken = in.readLong();
+			this.lastUpdate = in.readLong();
+			String privacyName = readString(in);
+			try {
+				this.privacy = privacyName == null ? null : Privacy.valueOf(privacyName);
+			} catch (IllegalArgumentException ex) {
+				throw new IOException("Unknown privacy: "+privacyName);
+			}
+			this.sets = readStrings(in);
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			writeString(out, id);
+			writeString(out, secret);
+			writeString(out, server);
+			writeString(out, title);
+			writeString(out, description);
+			writeStrings(out, tags);
+			out.writeLong(dateUpload);
+			out.writeLong(dateTaken);
+			out.writeLong(lastUpdate);
+			writeString(out, privacy == null ? null : privacy.name());
+			writeStrings(out, sets);
+		}
+
+		Photo toPhoto() {
+			Photo photo = PhotoIdentityMap.get(id);
+			if (photo != null) return photo;
+			return PhotoIdentityMap.intern(new Photo(id, secret, server, title));
+		}
+	}
+
+	private final User user;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Guarded by lock
+	private final Map<String,Entry> entries = new HashMap<String,Entry>();
+	private final Map<String,Set<String>> tagIndex = new HashMap<String,Set<String>>();
+	private final Map<String,Set<String>> textIndex = new HashMap<String,Set<String>>();
+	private final TreeMap<Long,Set<String>> uploadIndex = new TreeMap<Long,Set<String>>();
+	private final TreeMap<Long,Set<String>> takenIndex = new TreeMap<Long,Set<String>>();
+	private final Map<String,Set<String>> setIndex = new HashMap<String,Set<String>>();
+	private Date lastSync = null;
+
+	/**
+	 * Creates an empty catalog.
+	 * @param user owner of the photos.  Private photos are only synced when
+	 * the AuthContext is this user with READ permission.
+	 */
+	public PhotoCatalog(User user) {
+		if (user == null) throw new NullPointerException("user cannot be null");
+		this.user = user;
+	}
+
+	/**
+	 * Get the owner of the photos.
+	 */
+	public User getUser() {
+		return user;
+	}
+
+	/**
+	 * Load the whole library of the user, replacing the content of the catalog.
+	 * @throws FlickrException on any error, the catalog is then left unchanged
+	 */
+	public void sync() throws FlickrException {
+		Request req = new Request();
+		req.setParameter("method","flickr.people.getPhotos");
+		req.setParameter("user_id",user.getNSID());
+		req.setParameter("extras",extras);
+		req.setParameter("per_page","500");
+		List<Entry> loaded = new ArrayList<Entry>();
+		List<Element> photos = new ArrayList<Element>();
+		int page = 0;
+		int pages;
+		do {
+			page++;
+			photos.clear();
+			pages = PhotoList.fetchPage(req, page, photos);
+			for (Element photo : photos) {
+				loaded.add(new Entry(photo));
+			}
+		} while (page < pages);
+
+		Map<String,List<String>> sets = loadSets();
+		for (Entry entry : loaded) {
+			List<String> ids = sets.get(entry.id);
+			if (ids != null) entry.sets = ids.toArray(new String[ids.size()]);
+		}
+
+		replace(loaded, new Date());
+	}
+
+	/**
+	 * Get the time of the last sync.
+	 * @return the date, null if never synced
+	 */
+	public Date getLastSync() {
+		lock.readLock().lock();
+		try {
+			return lastSync;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of photos in the catalog.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Whether a search can run on the catalog, without calling Flickr.
+	 * @param search the search terms
+	 * @return true if the catalog is synced, the search is limited to its user,
+	 * and only uses terms the catalog knows: tags, text, privacy and dates,
+	 * without asking for extras
+	 */
+	public boolean isLocal(PhotoSearch search) {
+		if (search.getMedia() != null || search.getLicenses() != null || search.getContentType() != null
+				|| search.getSafeSearch() != null || search.getBoundingBox() != null
+				|| search.getLocation() != null || search.getSort() != null) return false;
+		// The catalog's photos come without extras
+		if (search.getExtras() != null && search.getExtras().length() > 0) return false;
+		return getLastSync() != null && search.getUser() != null
+				&& search.getUser().getNSID().equalsIgnoreCase(user.getNSID());
+	}
+
+	/**
+	 * Run a search on the catalog if possible, on Flickr otherwise.
+	 * @param search the search terms
+	 * @return the matching photos
+	 * @throws FlickrException on any error of a remote search
+	 * @see org.jickr.Photo#search(PhotoSearch)
+	 */
+	public List<Photo> search(PhotoSearch search) throws FlickrException {
+		if (search == null) throw new FlickrRuntimeException("Search term cannot be null");
+		// The user is a search condition on its own
+		if (!isLocal(search)) return Photo.search(search);
+
+		lock.readLock().lock();
+		try {
+			Set<String> ids = null;
+			if (search.getTags() != null) {
+				ids = matchTags(search.getTags().split(","), search.getTagMode() == PhotoSearch.Tagmode.ALL);
+			}
+			if (search.getSearchText() != null) {
+				ids = intersect(ids, matchText(search.getSearchText()));
+			}
+			if (search.getMinUploadDate() != null || search.getMaxUploadDate() != null) {
+				ids = intersect(ids, range(uploadIndex, search.getMinUploadDate(), after(search.getMaxUploadDate())));
+			}
+			if (search.getMinTakenDate() != null || search.getMaxTakenDate() != null) {
+				ids = intersect(ids, range(takenIndex, search.getMinTakenDate(), after(search.getMaxTakenDate())));
+			}
+			List<Entry> found = new ArrayList<Entry>();
+			for (String id : ids != null ? ids : entries.keySet()) {
+				Entry entry = entries.get(id);
+				if (search.getPrivacy() != null && entry.privacy != search.getPrivacy()) continue;
+				found.add(entry);
+			}
+			return toPhotos(found);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the photos of the catalog that are tagged with the desired keywords.
+	 * @param tags Comma separated list of tags
+	 * @param join True joins the tags with AND, False joins the tags with OR
+	 * @return the matching photos, most recently uploaded first
+	 */
+	public List<Photo> findByTags(String tags, boolean join) {
+		if (tags == null) throw new FlickrRuntimeException("Tags cannot be null");
+		lock.readLock().lock();
+		try {
+			return toPhotos(entriesOf(matchTags(tags.split(","), join)));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the photos of the catalog uploaded in a period.
+	 * @param from start of the period, inclusive.  Null for no start.
+	 * @param to end of the period, exclusive.  Null for no end.
+	 * @return the matching photos, most recently uploaded first
+	 */
+	public List<Photo> findByUploadDate(Date from, Date to) {
+		lock.readLock().lock();
+		try {
+			return toPhotos(entriesOf(range(uploadIndex, from, to)));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the photos of the catalog taken in a period.
+	 * @param from start of the period, inclusive.  Null for no start.
+	 * @param to end of the period, exclusive.  Null for no end.
+	 * @return the matching photos, most recently uploaded first
+	 */
+	public List<Photo> findByTakenDate(Date from, Date to) {
+		lock.readLock().lock();
+		try {
+			return toPhotos(entriesOf(range(takenIndex, from, to)));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the photos of the catalog belonging to a set.
+	 * @param setID ID of the PhotoSet
+	 * @return the photos of the set, most recently uploaded first
+	 */
+	public List<Photo> findBySet(String setID) {
+		lock.readLock().lock();
+		try {
+			Set<String> ids = setIndex.get(setID);
+			return toPhotos(entriesOf(ids != null ? ids : Collections.<String>emptySet()));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Add or replace a photo.
+	 */
+	void put(Entry entry) {
+		lock.writeLock().lock();
+		try {
+			unindex(entry.id);
+			index(entry);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove a photo.
+	 */
+	void remove(String id) {
+		lock.writeLock().lock();
+		try {
+			unindex(id);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the metadata of a photo.
+	 * @return the entry, null if not in the catalog
+	 */
+	Entry get(String id) {
+		lock.readLock().lock();
+		try {
+			return entries.get(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the IDs of every photo in the catalog.
+	 */
+	Set<String> getIDs() {
+		lock.readLock().lock();
+		try {
+			return new HashSet<String>(entries.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the latest update time of the photos of the catalog.
+	 * @return seconds since the epoch, 0 if empty
+	 */
+	long getMaxLastUpdate() {
+		lock.readLock().lock();
+		try {
+			long max = 0;
+			for (Entry entry : entries.values()) {
+				max = Math.max(max, entry.lastUpdate / 1000);
+			}
+			return max;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Mark the catalog as synced.
+	 */
+	void setLastSync(Date date) {
+		lock.writeLock().lock();
+		try {
+			lastSync = date;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Write the whole catalog, to be read back by <code>read</code>.
+	 */
+	void write(DataOutputStream out) throws IOException {
+		lock.readLock().lock();
+		try {
+			writeString(out, user.getNSID());
+			out.writeLong(lastSync == null ? -1 : lastSync.getTime());
+			out.writeInt(entries.size());
+			for (Entry entry : entries.values()) {
+				entry.write(out);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace the content of the catalog with a catalog written by <code>write</code>.
+	 * @throws IOException if the catalog can't be read, or is another user's.
+	 * The catalog is then left unchanged.
+	 */
+	void read(DataInputStream in) throws IOException {
+		String nsid = readString(in);
+		if (!user.getNSID().equals(nsid)) throw new IOException("Catalog of another user: "+nsid);
+		long time = in.readLong();
+		int size = in.readInt();
+		List<Entry> loaded = new ArrayList<Entry>(size);
+		for (int i = 0; i < size; i++) {
+			loaded.add(new Entry(in));
+		}
+		replace(loaded, time < 0 ? null : new Date(time));
+	}
+
+	private void replace(List<Entry> loaded, Date date) {
+		lock.writeLock().lock();
+		try {
+			entries.clear();
+			tagIndex.clear();
+			textIndex.clear();
+			uploadIndex.clear();
+			takenIndex.clear();
+			setIndex.clear();
+			for (Entry entry : loaded) {
+				index(entry);
+			}
+			lastSync = date;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the set IDs of every photo, for the sets of the user.
+	 * @return set IDs by photo ID
+	 */
+	Map<String,List<String>> loadSets() throws FlickrException {
+		Map<String,List<String>> sets = new HashMap<String,List<String>>();
+		List<Element> photos = new ArrayList<Element>();
+		for (PhotoSet set : user.getPhotoSets()) {
+			Request req = new Request();
+			req.setParameter("method","flickr.photosets.getPhotos");
+			req.setParameter("photoset_id",set.getID());
+			req.setParameter("per_page","500");
+			int page = 0;
+			int pages;
+			do {
+				page++;
+				photos.clear();
+				pages = PhotoList.fetchPage(req, page, photos);
+				for (Element photo : photos) {
+					String id = photo.getAttributeValue("id");
+					List<String> ids = sets.get(id);
+					if (ids == null) {
+						ids = new ArrayList<String>(2);
+						sets.put(id, ids);
+					}
+					ids.add(set.getID());
+				}
+			} while (page < pages);
+		}
+		return sets;
+	}
+
+	// Guarded by the write lock
+	private void index(Entry entry) {
+		entries.put(entry.id, entry);
+		for (String tag : entry.tags) {
+			add(tagIndex, normalizeTag(tag), entry.id);
+		}
+		for (String word : words(entry)) {
+			add(textIndex, word, entry.id);
+		}
+		add(uploadIndex, entry.dateUpload, entry.id);
+		add(takenIndex, entry.dateTaken, entry.id);
+		for (String set : entry.sets) {
+			add(setIndex, set, entry.id);
+		}
+	}
+
+	// Guarded by the write lock
+	private void unindex(String id) {
+		Entry entry = entries.remove(id);
+		if (entry == null) return;
+		for (String tag : entry.tags) {
+			remove(tagIndex, normalizeTag(tag), id);
+		}
+		for (String word : words(entry)) {
+			remove(textIndex, word, id);
+		}
+		remove(uploadIndex, entry.dateUpload, id);
+		remove(takenIndex, entry.dateTaken, id);
+		for (String set : entry.sets) {
+			remove(setIndex, set, id);
+		}
+	}
+
+	// Guarded by the read lock
+	private Set<String> matchTags(String[] tags, boolean all) {
+		Set<String> ids = null;
+		for (String tag : tags) {
+			String normalized = normalizeTag(tag);
+			if (normalized.length() == 0) continue;
+			Set<String> tagged = tagIndex.get(normalized);
+			if (tagged == null) tagged = Collections.emptySet();
+			if (all) {
+				ids = intersect(ids, tagged);
+			} else {
+				if (ids == null) ids = new HashSet<String>();
+				ids.addAll(tagged);
+			}
+		}
+		return ids != null ? ids : new HashSet<String>();
+	}
+
+	// Guarded by the read lock.  Every word must match.
+	private Set<String> matchText(String text) {
+		Set<String> ids = null;
+		for (String word : tokenize(text)) {
+			Set<String> found = textIndex.get(word);
+			ids = intersect(ids, found != null ? found : Collections.<String>emptySet());
+		}
+		return ids != null ? ids : new HashSet<String>();
+	}
+
+	// Guarded by the read lock
+	private Set<String> range(TreeMap<Long,Set<String>> index, Date from, Date to) {
+		NavigableMap<Long,Set<String>> range = index;
+		if (from != null) range = range.tailMap(from.getTime(), true);
+		if (to != null) range = range.headMap(to.getTime(), false);
+		Set<String> ids = new HashSet<String>();
+		for (Set<String> some : range.values()) {
+			ids.addAll(some);
+		}
+		return ids;
+	}
+
+	// Guarded by the read lock
+	private List<Entry> entriesOf(Collection<String> ids) {
+		List<Entry> found = new ArrayList<Entry>(ids.size());
+		for (String id : ids) {
+			found.add(entries.get(id));
+		}
+		return found;
+	}
+
+	// Exclusive end of a range including the given second
+	private static Date after(Date max) {
+		return max == null ? null : new Date((max.getTime() / 1000 + 1) * 1000);
+	}
+
+	private static List<Photo> toPhotos(List<Entry> found) {
+		Collections.sort(found, new Comparator<Entry>() {
+			public int compare(Entry a, Entry b) {
+				return a.dateUpload < b.dateUpload ? 1 : a.dateUpload > b.dateUpload ? -1 : 0;
+			}
+		});
+		List<Photo> photos = new ArrayList<Photo>(found.size());
+		for (Entry entry : found) {
+			photos.add(entry.toPhoto());
+		}
+		return photos;
+	}
+
+	private static Set<String> intersect(Set<String> ids, Set<String> others) {
+		if (ids == null) return new HashSet<String>(others);
+		ids.retainAll(others);
+		return ids;
+	}
+
+	private static <K> void add(Map<K,Set<String>> index, K key, String id) {
+		Set<String> ids = index.get(key);
+		if (ids == null) {
+			ids = new HashSet<String>();
+			index.put(key, ids);
+		}
+		ids.add(id);
+	}
+
+	private static <K> void remove(Map<K,Set<String>> index, K key, String id) {
+		Set<String> ids = index.get(key);
+		if (ids == null) return;
+		ids.remove(id);
+		if (ids.isEmpty()) index.remove(key);
+	}
+
+	private static Set<String> words(Entry entry) {
+		Set<String> words = new HashSet<String>();
+		words.addAll(tokenize(entry.title));
+		words.addAll(tokenize(entry.description));
+		for (String tag : entry.tags) {
+			words.addAll(tokenize(tag));
+		}
+		return words;
+	}
+
+	// Lower case words of letters and digits
+	static List<String> tokenize(String text) {
+		List<String> words = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				word.append(Character.toLowerCase(c));
+			} else if (word.length() > 0) {
+				words.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		return words;
+	}
+
+	// Tags the way Flickr compares them: lower case, letters and digits only
+	static String normalizeTag(String tag) {
+		StringBuilder normalized = new StringBuilder(tag.length());
+		for (int i = 0; i < tag.length(); i++) {
+			char c = tag.charAt(i);
+			if (Character.isLetterOrDigit(c)) normalized.append(Character.toLowerCase(c));
+		}
+		return normalized.toString();
+	}
+
+	private static long parseLong(String value) {
+		if (value == null) return 0;
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException nfe) {
+			return 0;
+		}
+	}
+
+	private static long parseTaken(String value) {
+		if (value == null) return 0;
+		try {
+			return Photo.takenFormat().parse(value).getTime();
+		} catch (ParseException pe) {
+			return 0;
+		}
+	}
+
+	private static String nonNull(String value) {
+		return value == null ? "" : value;
+	}
+
+	// Strings of any length, or null
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+		out.writeInt(values.length);
+		for (String value : values) {
+			writeString(out, value);
+		}
+	}
+
+	private static String[] readStrings(DataInputStream in) throws IOException {
+		String[] values = new String[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = readString(in);
+		}
+		return values;
+	}
+}
@@ -25,6 +25,11 @@ public class PhotoCollection {
 	List<PhotoCollection> subCollections = new ArrayList<PhotoCollection>();
 	List<PhotoSet> photosets = new ArrayList<PhotoSet>();
 	
+	// Null for the root of a tree
+	PhotoCollection parent;
+	// Shared by the whole tree
+	CollectionIndex index;
+	
 	/**
      * Creates a new instance of Collection, using the Element returned by Flickr.
      * <code>Collection</code> is created in lists via User.getCollections(), or
@@ -42,31 +47,20 @@ public class PhotoCollection {
      * <code>Collection</code> is created in lists via User.getCollections(), or
      * via the <code>Collection.findByID(id)</code> call.
      *
+     * The whole tree is built from the element, without calling Flickr: the
+     * sets only hold the id, title and description of the tree, and load the
+     * rest of their info on first access.
+     *
      * @param collection The Collection information.  Must not be null.
-     * @param fetchSets fetch linked sets (very slow)
+     * @param fetchSets also load the info of every set of the tree now, with
+     * concurrent calls
      * @throws FlickrException On any error.
      */
     PhotoCollection(Element collection, boolean fetchSets) throws FlickrException {
 		if (collection == null) throw new FlickrRuntimeException("Collection cannot be null");
-        this.id = collection.getAttributeValue("id");
-        this.title = collection.getAttributeValue("title");
-        this.description = collection.getAttributeValue("description");
-        this.iconLarge = collection.getAttributeValue("iconlarge");
-        this.iconSmall = collection.getAttributeValue("iconsmall");
-        this.numPhotoSets = collection.getChildren().size();
-        
-        // Get associated sets
-        if(fetchSets)
-	        for(Object set : collection.getChildren("set")){
-	        	Element e = (Element) set;
-	        	photosets.add(new PhotoSet(e.getAttributeValue("id")));
-	        }
-
-        // Get sub-collections
-        for(Object c : collection.getChildren("collection")){
-        	Element e = (Element) c;
-        	this.subCollections.add(new PhotoCollection(e));
-        }
+		init(collection);
+		buildIndex();
+		if (fetchSets) hydrateSets(8, null);
 	}
 	
 	PhotoCollection(String id) throws FlickrException {
@@ -77,7 +71,12 @@ public class PhotoCollection {
         
         Document doc = req.getResponse();
         Element root = doc.getRootElement();
-        Element collection = root.getChild("collections").getChild("collection");
+        init(root.getChild("collections").getChild("collection"));
+        buildIndex();
+    }
+	
+	// Build this collection and its sub-collections from a tree element
+	private void init(Element collection) {
         this.id = collection.getAttributeValue("id");
         this.title = collection.getAttributeValue("title");
         this.description = collection.getAttributeValue("description");
@@ -85,16 +84,62 @@ public class PhotoCollection {
         this.iconSmall = collection.getAttributeValue("iconsmall");
         this.numPhotoSets = collection.getChildren().size();
         
-        for(Object set : collection.getChildren()){
-        	Element e = (Element) set;
-        	photosets.add(new PhotoSet(e.getAttributeValue("id")));
+        // Get associated sets
+        for(Object set : collection.getChildren("set")){
+        	photosets.add(PhotoSet.fromTreeElement((Element) set));
         }
         
+        // Get sub-collections
         for(Object c : collection.getChildren("collection")){
-        	Element e = (Element) c;
-        	this.subCollections.add(new PhotoCollection(e));
+        	PhotoCollection sub = new PhotoCollection();
+        	sub.parent = this;
+        	sub.init((Element) c);
+        	this.subCollections.add(sub);
         }
-    }
+	}
+	
+	private PhotoCollection() {
+	}
+	
+	// Index the tree once, from its root
+	private void buildIndex() {
+		CollectionIndex index = new CollectionIndex();
+		shareIndex(index);
+		index.addTree(this);
+	}
+	
+	private void shareIndex(CollectionIndex index) {
+		this.index = index;
+		for (PhotoCollection sub : subCollections) {
+			sub.shareIndex(index);
+		}
+	}
+	
+	/**
+	 * Load the info of every set of this collection and its sub-collections,
+	 * with concurrent calls, instead of one call per set on first access.
+	 *
+	 * @param parallelism Maximum number of concurrent calls to Flickr.
+	 * @param limiter Rate limiter shared with other callers, may be null.
+	 * @throws FlickrException The first error, once every call is done.
+	 */
+	public void hydrateSets(int parallelism, RateLimiter limiter) throws FlickrException {
+		PhotoSet.hydrate(getAllPhotosets(), parallelism, limiter);
+	}
+	
+	// Sets of this collection and its sub-collections
+	List<PhotoSet> getAllPhotosets() {
+		List<PhotoSet> sets = new ArrayList<PhotoSet>();
+		collectSets(sets);
+		return sets;
+	}
+	
+	private void collectSets(List<PhotoSet> sets) {
+		sets.addAll(photosets);
+		for (PhotoCollection sub : subCollections) {
+			sub.collectSets(sets);
+		}
+	}
 	
 	/**
      * Get a new Collection identified by the supplied ID (format: userid-collection_id).
@@ -125,55 +170,72 @@ public class PhotoCollection {
         Document doc = req.getResponse();
         Element root = doc.getRootElement();
         Element photoCollection = root.getChild("collection");
+        ReadCache.changed(ReadCache.collections);
         
         // return PhotoCollection id
     	return photoCollection.getAttributeValue("id");
     }
 
     /**
-     * find first set equals to setName in collection tree
+     * Create a new collection under this one, and add it to the tree.
+     *
+     * @param title required.
+     * @param description optional.
+     * @return the new collection
+     * @throws FlickrException if any error occured
+     */
+    public PhotoCollection createSubCollection(String title, String description) throws FlickrException {
+    	String newId = newPhotoCollection(title, description, id, null);
+    	PhotoCollection sub = new PhotoCollection();
+    	sub.id = newId;
+    	sub.title = title;
+    	sub.description = description;
+    	sub.parent = this;
+    	sub.index = index;
+    	subCollections.add(sub);
+    	index.addCollection(sub);
+    	return sub;
+    }
+
+    /**
+     * find first set equals to setName in collection tree.  Lookups use the
+     * index of the tree, they don't walk it.
      * @param setName name of searched set
      * @return set object
      */
     public PhotoSet findSetByName(String setName) {
-    	return findSetByName(setName, this);
+    	if (setName == null) throw new FlickrRuntimeException("setName cannot be null");
+    	return index.findSetByTitle(setName, this);
     }
     
-    private PhotoSet findSetByName(String setName, PhotoCollection collection){
-    	if (setName == null) throw new FlickrRuntimeException("setName cannot be null");
-    	if (collection == null) throw new FlickrRuntimeException("collection cannot be null");
-        for(PhotoSet ps : collection.getPhotosets()){
-        	if(ps.getTitle().equals(setName))
-        		return ps;
-        }
-        for(PhotoCollection pc : collection.getSubCollections()){
-        	PhotoSet set = findSetByName(setName, pc);
-        	if(set!=null)
-        		return set;
-        }
-        return null;
+    /**
+     * find a set by ID in collection tree
+     * @param setId ID of searched set
+     * @return set object, null if not in the tree
+     */
+    public PhotoSet findSetByID(String setId) {
+    	if (setId == null) throw new FlickrRuntimeException("setId cannot be null");
+    	return index.findSetByID(setId, this);
     }
     
     /**
      * find first collection equals to collectionName in collection tree
-     * @param setName name of searched set
-     * @return set object
+     * @param collectionName name of searched collection
+     * @return collection object
      */
     public PhotoCollection findCollectionByName(String collectionName) {
-    	return findCollectionByName(collectionName, this);
+    	if (collectionName == null) throw new FlickrRuntimeException("collectionName cannot be null");
+    	return index.findCollectionByTitle(collectionName, this);
     }
     
-    private PhotoCollection findCollectionByName(String collectionName, PhotoCollection collection){
-    	if (collectionName == null) throw new FlickrRuntimeException("collectionName cannot be null");
-    	if (collection == null) throw new FlickrRuntimeException("collection cannot be null");
-    	if(collection.getTitle().equals(collectionName))
-    		return collection;
-        for(PhotoCollection pc : collection.getSubCollections()){
-        	PhotoCollection result = findCollectionByName(collectionName, pc);
-        	if(result != null)
-        		return result;
-        }
-        return null;
+    /**
+     * find a collection by ID in collection tree
+     * @param collectionId ID of searched collection
+     * @return collection object, null if not in the tree
+     */
+    public PhotoCollection findCollectionByID(String collectionId) {
+    	if (collectionId == null) throw new FlickrRuntimeException("collectionId cannot be null");
+    	return index.findCollectionByID(collectionId, this);
     }
     
     /**
@@ -186,20 +248,19 @@ public class PhotoCollection {
      */
     public static boolean addSetToCollection(String setId, PhotoCollection collection) throws FlickrException{
     	if (setId == null) throw new NullPointerException("Set id cannot be null");
-    	for(PhotoSet set : collection.getPhotosets())
-    		if(set.getID().equals(setId))
-    			return false;
+    	if (collection.index.containsSet(setId, collection))
+    		return false;
         Request req = new Request(Request.POST);
         req.setParameter("method","flickr.collections.editSets");
         req.setParameter("collection_id",collection.getId());
-        String photoSetIds = "";
-        for(int i=0; i < collection.getPhotosets().size(); i++){
-        	PhotoSet ps = collection.getPhotosets().get(i);
-        	photoSetIds += ps.getID()+",";
+        StringBuilder photoSetIds = new StringBuilder();
+        for(PhotoSet ps : collection.getPhotosets()){
+        	photoSetIds.append(ps.getID()).append(',');
         }
-        photoSetIds += setId;
-        req.setParameter("photoset_ids",photoSetIds);
+        photoSetIds.append(setId);
+        req.setParameter("photoset_ids",photoSetIds.toString());
         req.getResponse();
+        ReadCache.changed(ReadCache.collections);
         return true;
     }
 
@@ -211,8 +272,11 @@ public class PhotoCollection {
      * @throws FlickrException if any error occured 
      */
     public boolean addSet(String setId) throws FlickrException{
-    	PhotoCollection.addSetToCollection(setId, this);
-        photosets.add(new PhotoSet(setId));
+    	if (!PhotoCollection.addSetToCollection(setId, this))
+    		return false;
+    	PhotoSet set = new PhotoSet(setId);
+        photosets.add(set);
+        index.addSet(set, this);
         return true;
     }
     
@@ -224,8 +288,10 @@ public class PhotoCollection {
      * @throws FlickrException if any error occured 
      */
     public boolean addSet(PhotoSet set) throws FlickrException{
-    	PhotoCollection.addSetToCollection(set.getID(), this);
+    	if (!PhotoCollection.addSetToCollection(set.getID(), this))
+    		return false;
         photosets.add(set);
+        index.addSet(set, this);
         return true;
     }
     
@@ -272,6 +338,14 @@ public class PhotoCollection {
 	public List<PhotoCollection> getSubCollections() {
 		return subCollections;
 	}
+	
+	/**
+	 * Parent collection in the tree
+	 * @return the parent, null for the root of the tree
+	 */
+	public PhotoCollection getParent() {
+		return parent;
+	}
 
 	/**
      * Convert this Collection to a String.
@@ -0,0 +1,101 @@
+package org.jickr;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jdom.Element;
+
+/**
+ * Keeps one canonical Photo object per photo ID.
+ * This is an implementation class, not intended for general use.
+ *
+ * The same photo showing up in a search, a set and a group pool resolves to a
+ * single Photo, so its info, sizes and cached image are fetched only once.
+ * Photos are weakly referenced: the map never keeps a Photo alive, and entries
+ * of collected photos are purged as new photos are registered.
+ */
+final class PhotoIdentityMap {
+
+	private static final ConcurrentHashMap<String, Ref> photos = new ConcurrentHashMap<String, Ref>();
+	private static final ReferenceQueue<Photo> collected = new ReferenceQueue<Photo>();
+
+	// Weak reference remembering its key, to be removed once collected
+	private static final class Ref extends WeakReference<Photo> {
+		final String id;
+
+		Ref(String id, Photo photo) {
+			super(photo, collected);
+			this.id = id;
+		}
+	}
+
+	private PhotoIdentityMap() {
+	}
+
+	/**
+	 * Get the canonical Photo of an ID, if one is still in use.
+	 * @param id photo ID
+	 * @return the Photo, null if none
+	 */
+	static Photo get(String id) {
+		Ref ref = photos.get(id);
+		return ref == null ? null : ref.get();
+	}
+
+	/**
+	 * Get the canonical Photo of a photo element returned by a list method,
+	 * creating it when needed.  The attributes of the element complete the
+	 * ones the canonical Photo doesn't know yet.
+	 * @param element a photo element, with at least an id attribute
+	 * @return the canonical Photo
+	 */
+	static Photo fromElement(Element element) {
+		String id = element.getAttributeValue("id");
+		if (id == null) return new Photo(element);
+		Photo photo = get(id);
+		if (photo != null) {
+			photo.merge(element);
+			return photo;
+		}
+		Photo created = new Photo(element);
+		photo = intern(created);
+		// Another thread may have registered the photo first
+		if (photo != created) photo.merge(element);
+		return photo;
+	}
+
+	/**
+	 * Register a Photo as canonical for its ID, unless another one already is.
+	 * @param photo a newly created Photo
+	 * @return the canonical Photo, either the one given or the one registered before
+	 */
+	static Photo intern(Photo photo) {
+		purge();
+		String id = photo.getID();
+		Ref mine = new Ref(id, photo);
+		while (true) {
+			Ref existing = photos.putIfAbsent(id, mine);
+			if (existing == null) return photo;
+			Photo other = existing.get();
+			if (other != null) return other;
+			// The registered Photo was collected, take its place
+			if (photos.replace(id, existing, mine)) return photo;
+		}
+	}
+
+	/**
+	 * Get the number of IDs tracked, including photos collected but not purged yet.
+	 */
+	static int size() {
+		return photos.size();
+	}
+
+	private static void purge() {
+		Ref ref;
+		while ((ref = (Ref) collected.poll()) != null) {
+			// Only if it wasn't replaced in the meantime
+			photos.remove(ref.id, ref);
+		}
+	}
+}
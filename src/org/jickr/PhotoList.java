@@ -16,6 +16,7 @@ package org.jickr;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import org.jdom.Document;
 import org.jdom.Element;
 
@@ -24,7 +25,9 @@ import org.jdom.Element;
  * of pictures changes during the lifetime of the object.  This means that if you add or delete
  * photos while there's a program with this object, odd things could happen.</P>
  * <P>Currently the list is created by loading a list of all photos from Flickr at the time the class
- * is initialized.  This list is currently limited to the first 5000 returned. </P>
+ * is initialized.  This list is currently limited to the first 5000 returned, except for the
+ * photos of a PhotoSet, which are all returned.  The pages after the first one are fetched
+ * concurrently.</P>
  *<P>This class is not meant to be used directly by the end user.  It's exposed as the return type
  * for classes that return stuff of type List<Photo>.</P>
  *
@@ -36,10 +39,13 @@ class PhotoList <E extends Photo> extends AbstractList {
     //  Number of photos to get per page
     private final String paging = "500";
     private final int pagingNum = Integer.parseInt(paging);
-    // Maximum # of pages to fetch
+    // Maximum # of pages of 500 photos to fetch; smaller pages are fetched
+    // up to the same number of photos
     // Set to 0 to turn off limit
     // multiply limitpages * pagingNum to get limit on # of photos
     private final int limitpages = 10;
+    // Maximum # of pages fetched at once
+    private static final int parallelism = 4;
     private ArrayList<Photo> backingList = new ArrayList<Photo>();
     
     
@@ -48,11 +54,20 @@ class PhotoList <E extends Photo> extends AbstractList {
      */
     PhotoList(Request req) throws FlickrException {
         listRequest = req;
-        req.setParameter("per_page",paging);
+        // Callers may choose smaller pages
+        if (req.getParameter("per_page") == null) req.setParameter("per_page",paging);
         //        photoListURLString = baseListURLString + "&per_page="+paging+"&page=";
         loadBackingList();
     }
     
+    /**
+     * Creates a PhotoList of photos already known, without any request.
+     */
+    PhotoList(List<Photo> photos) {
+        listRequest = null;
+        backingList.addAll(photos);
+    }
+    
     public Photo get(int index) {
         return backingList.get(index);
     }
@@ -67,48 +82,97 @@ class PhotoList <E extends Photo> extends AbstractList {
     
     /**
      * Load the list into the backing list.
-     *
-     * Since the XML format is different between Photoset Photolists and
-     * other photo lists, we'll have to put a bunch of special cases in here.
-     *
      */
     private void loadBackingList() throws FlickrException {
-        Document doc;
-        Element root;
-        int pages;
-        int pagecount = 0;
-        List<Element> photos;
+        List<Element> photos = new ArrayList<Element>();
+        int pages = fetchPage(listRequest, 1, photos);
+        // Sets are always listed entirely
+        boolean limited = !"flickr.photosets.getPhotos".equals(listRequest.getParameter("method"));
+        if (limited && limitpages != 0) {
+            int perPage = Math.max(1, Integer.parseInt(listRequest.getParameter("per_page").toString()));
+            int maxPages = (limitpages * pagingNum + perPage - 1) / perPage;
+            if (maxPages < pages) pages = maxPages;
+        }
         
-        do {
-            pagecount++;
-            listRequest.setParameter("page",pagecount+"");
-            doc = listRequest.getResponse();
-            root = doc.getRootElement();
-            //  Sometimes, the Photos element has a "pages" attribute,
-            //  sometimes it doesn't.
-            //  When it doesn't, then there's only one page.
-            //  But no matter what you say, I still don't miss schemas.
-            Element photosElement = root.getChild("photos");
-            if (photosElement == null) { // We're in a Photoset PhotoList
-                pages = 1;
-                photos = root.getChild("photoset").getChildren("photo");
-            } else {
-                String pagesString = photosElement.getAttributeValue("pages");
-                if (pagesString == null) {
-                    pages = 1;
-                } else {
-                    pages = Integer.parseInt(pagesString);
-                    if (limitpages != 0 && limitpages < pages) pages = limitpages;
+        // The other pages at once, each with its own copy of the request
+        List<Callable<List<Element>>> tasks = new ArrayList<Callable<List<Element>>>();
+        for (int page = 2; page <= pages; page++) {
+            final int p = page;
+            final Request req = listRequest.copy();
+            tasks.add(new Callable<List<Element>>() {
+                public List<Element> call() throws FlickrException {
+                    List<Element> pagePhotos = new ArrayList<Element>();
+                    fetchPage(req, p, pagePhotos);
+                    return pagePhotos;
                 }
-                photos = root.getChild("photos").getChildren("photo");
+            });
+        }
+        List<List<Element>> others = Parallel.invokeAll(tasks, parallelism, null);
+        
+        backingList.ensureCapacity(photos.size() * pages);
+        for (Element photo : photos)  {
+            backingList.add(PhotoIdentityMap.fromElement(photo));
+        }
+        for (List<Element> pagePhotos : others) {
+            for (Element photo : pagePhotos)  {
+                backingList.add(PhotoIdentityMap.fromElement(photo));
             }
-            for (Element photo : photos)  {
-                backingList.add(new Photo(photo));
+        }
+    }
+    
+    /**
+     * Fetch one page of a photo list request.  Search pages come from the
+     * SearchCache, when one is set.
+     *
+     * @param req the list request, its page parameter is set by this method
+     * @param page number of the page, starting at 1
+     * @param photos receives the photo elements of the page
+     * @return the total number of pages of the list
+     */
+    static int fetchPage(Request req, int page, List<Element> photos) throws FlickrException {
+        SearchCache cache = Photo.getSearchCache();
+        String key = cache == null ? null : SearchCache.key(req);
+        if (key != null) {
+            int perPage = SearchCache.perPage(req);
+            SearchCache.Page cached = cache.get(key, page, perPage);
+            if (cached != null) {
+                SearchCache.addElements(cached, photos);
+                return cached.pages;
             }
-        } while (pagecount < pages);
+            List<Element> fetched = new ArrayList<Element>();
+            int[] total = { -1 };
+            int pages = fetchRemotePage(req, page, fetched, total);
+            if (total[0] >= 0) cache.put(key, page, perPage, total[0], fetched);
+            photos.addAll(fetched);
+            return pages;
+        }
+        return fetchRemotePage(req, page, photos, null);
+    }
+    
+    // Since the XML format is different between Photoset Photolists and
+    // other photo lists, we'll have to put a bunch of special cases in here.
+    // total receives the total number of photos, if not null and sent by Flickr.
+    private static int fetchRemotePage(Request req, int page, List<Element> photos, int[] total) throws FlickrException {
+        req.setParameter("page",page+"");
+        Document doc = req.getResponse();
+        Element root = doc.getRootElement();
+        //  Sometimes, the Photos element has a "pages" attribute,
+        //  sometimes it doesn't.
+        //  When it doesn't, then there's only one page.
+        //  But no matter what you say, I still don't miss schemas.
+        Element photosElement = root.getChild("photos");
+        if (photosElement == null) { // We're in a Photoset PhotoList
+            photosElement = root.getChild("photoset");
+        }
+        photos.addAll(photosElement.getChildren("photo"));
+        String totalString = photosElement.getAttributeValue("total");
+        if (total != null && totalString != null) total[0] = Integer.parseInt(totalString);
+        String pagesString = photosElement.getAttributeValue("pages");
+        return pagesString == null ? 1 : Integer.parseInt(pagesString);
     }
 
     public String toString() {
+        if (listRequest == null) return super.toString();
         return listRequest.toString();
     }    
 }
\ No newline at end of file
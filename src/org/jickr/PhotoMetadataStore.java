@@ -0,0 +1,349 @@
+package org.jickr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
+
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+
+/**
+ * Photo metadata kept off the Java heap, in a memory-mapped file.
+ *
+ * Once installed with <code>Photo.setMetadataStore</code>, the lazy getters
+ * of Photo read the answers of flickr.photos.getInfo and flickr.photos.getSizes
+ * from the store, and only call Flickr for photos it doesn't know yet.  Tens
+ * of millions of photos then cost no heap, and no garbage collection time.
+ *
+ * The file holds an open-addressing table from numeric photo ID to record
+ * offset, followed by variable-width records appended one after the other.
+ * Readers never lock: table entries are published with release writes and
+ * read with acquire reads, and records are never modified once published.
+ * Writers append a new record and switch the table entry to it, holding both
+ * a lock of this object and a lock on the file, so several JVMs of the same
+ * host can share the file.  The content survives restarts.
+ *
+ * Answers are stored as seen by the user who fetched them, permissions
+ * included: share a store only between callers with the same AuthContext.
+ *
+ * Replaced records are not reclaimed.  When the table or the data area is
+ * full, new photos are simply not stored anymore: delete the file to start
+ * over with a bigger one.
+ *
+ * Example of use:
+ * 	 Photo.setMetadataStore(PhotoMetadataStore.open(new File("/var/cache/jickr.meta"), 1 << 24, 4L << 30));
+ */
+public class PhotoMetadataStore {
+
+	private static final long magic = 0x6a69636b724d6431L; // "jickrMd1"
+	private static final int headerSize = 4096;
+	private static final int slotSize = 16;
+	// Records never cross a mapping boundary
+	private static final int chunkShift = 30;
+	private static final long chunkSize = 1L << chunkShift;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Header fields
+	private static final int magicPos = 0;
+	private static final int capacityPos = 8;
+	private static final int dataCapacityPos = 16;
+	private static final int tailPos = 24;
+	private static final int countPos = 32;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer[] chunks;
+	private final int capacity;
+	private final long dataStart;
+	private final long dataEnd;
+	private volatile boolean full = false;
+
+	private PhotoMetadataStore(RandomAccessFile file, int capacity, long dataCapacity) throws IOException {
+		this.file = file;
+		this.channel = file.getChannel();
+		this.capacity = capacity;
+		this.dataStart = headerSize + (long) capacity * slotSize;
+		this.dataEnd = dataStart + dataCapacity;
+		int count = (int) ((dataEnd + chunkSize - 1) >>> chunkShift);
+		this.chunks = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long start = (long) i << chunkShift;
+			chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(chunkSize, dataEnd - start));
+		}
+	}
+
+	/**
+	 * Open a store, creating the file if it doesn't exist.  An existing file
+	 * keeps the sizes it was created with.
+	 *
+	 * @param path the store file
+	 * @param capacity number of photos the table can hold, rounded up to a power of two
+	 * @param dataBytes size of the record area, in bytes
+	 * @return the opened store
+	 * @throws IOException if the file can't be mapped, or isn't a store
+	 */
+	public static PhotoMetadataStore open(File path, int capacity, long dataBytes) throws IOException {
+		if (capacity <= 0 || capacity > (1 << 30)) throw new IllegalArgumentException("Invalid capacity: "+capacity);
+		if (dataBytes <= 0) throw new IllegalArgumentException("dataBytes must be positive");
+		int tableCapacity = Integer.highestOneBit(capacity);
+		if (tableCapacity < capacity) tableCapacity <<= 1;
+
+		RandomAccessFile raf = new RandomAccessFile(path, "rw");
+		try {
+			FileLock lock = raf.getChannel().lock();
+			try {
+				if (raf.length() >= headerSize) {
+					raf.seek(magicPos);
+					if (raf.readLong() != magic) throw new IOException("Not a photo metadata store: "+path);
+					raf.seek(capacityPos);
+					tableCapacity = (int) raf.readLong();
+					raf.seek(dataCapacityPos);
+					dataBytes = raf.readLong();
+				} else {
+					// New file: the table and the data are zero filled
+					raf.setLength(headerSize + (long) tableCapacity * slotSize + dataBytes);
+					raf.seek(capacityPos);
+					raf.writeLong(tableCapacity);
+					raf.writeLong(dataBytes);
+					raf.writeLong(0);
+					raf.writeLong(0);
+					raf.seek(magicPos);
+					raf.writeLong(magic);
+				}
+			} finally {
+				lock.release();
+			}
+			return new PhotoMetadataStore(raf, tableCapacity, dataBytes);
+		} catch (IOException ex) {
+			raf.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Whether the store holds anything for a photo.
+	 * @param id numeric photo ID
+	 */
+	public boolean contains(long id) {
+		return find(id) >= 0;
+	}
+
+	/**
+	 * Get the number of photos in the store.
+	 */
+	public int size() {
+		return (int) getLong(countPos);
+	}
+
+	/**
+	 * Close the file.  The store must not be used anymore.
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Get the photo element of flickr.photos.getInfo.
+	 * @return the element, null if not stored
+	 */
+	Element getInfo(long id) {
+		return parse(readPart(id, 0));
+	}
+
+	/**
+	 * Get the sizes element of flickr.photos.getSizes.
+	 * @return the element, null if not stored
+	 */
+	Element getSizes(long id) {
+		return parse(readPart(id, 1));
+	}
+
+	/**
+	 * Store the photo element of flickr.photos.getInfo.
+	 */
+	void putInfo(long id, Element photo) {
+		write(id, 0, serialize(photo));
+	}
+
+	/**
+	 * Store the sizes element of flickr.photos.getSizes.
+	 */
+	void putSizes(long id, Element sizes) {
+		write(id, 1, serialize(sizes));
+	}
+
+	// A record is: int length of part 0, its bytes, int length of part 1, its bytes.
+	// Missing parts have a length of -1.
+	private byte[] readPart(long id, int part) {
+		long offset = find(id);
+		if (offset < 0) return null;
+		ByteBuffer record = chunk(offset);
+		for (int i = 0; i < part; i++) {
+			int len = record.getInt();
+			if (len > 0) record.position(record.position() + len);
+		}
+		int len = record.getInt();
+		if (len < 0) return null;
+		byte[] bytes = new byte[len];
+		record.get(bytes);
+		return bytes;
+	}
+
+	private void write(long id, int part, byte[] bytes) {
+		if (id <= 0 || full) return;
+		try {
+			synchronized (this) {
+				FileLock lock = channel.lock(magicPos, headerSize, false);
+				try {
+					writeLocked(id, part, bytes);
+				} finally {
+					lock.release();
+				}
+			}
+		} catch (IOException ex) {
+			Logger.global.warning("Can't write photo metadata store: "+ex.getMessage());
+		}
+	}
+
+	private void writeLocked(long id, int part, byte[] bytes) {
+		// Keep the other part of the current record
+		byte[][] parts = new byte[2][];
+		parts[part] = bytes;
+		parts[1 - part] = readPart(id, 1 - part);
+
+		int length = 8 + bytes.length + (parts[1 - part] == null ? 0 : parts[1 - part].length);
+		long tail = getLong(tailPos);
+		long offset = dataStart + tail;
+		if ((offset >>> chunkShift) != ((offset + length - 1) >>> chunkShift)) {
+			offset = ((offset >>> chunkShift) + 1) << chunkShift;
+		}
+		if (offset + length > dataEnd) {
+			setFull("data area");
+			return;
+		}
+
+		long slot = findSlot(id);
+		if (slot < 0) {
+			setFull("table");
+			return;
+		}
+
+		ByteBuffer record = chunk(offset);
+		for (byte[] p : parts) {
+			if (p == null) {
+				record.putInt(-1);
+			} else {
+				record.putInt(p.length);
+				record.put(p);
+			}
+		}
+		// 8 byte alignment of the next record
+		setLongRelease(tailPos, ((offset + length + 7) & ~7L) - dataStart);
+
+		// Publish: offset before key, readers acquire the key first
+		setLongRelease(slot + 8, offset);
+		if (getLong(slot) != id) {
+			setLongRelease(slot, id);
+			setLongRelease(countPos, getLong(countPos) + 1);
+		}
+	}
+
+	private void setFull(String what) {
+		full = true;
+		Logger.global.warning("Photo metadata store full ("+what+"), not storing new photos anymore");
+	}
+
+	// Absolute offset of the record of a photo, -1 if none
+	private long find(long id) {
+		if (id <= 0) return -1;
+		int mask = capacity - 1;
+		int slot = hash(id) & mask;
+		for (int n = 0; n < capacity; n++) {
+			long pos = headerSize + (long) slot * slotSize;
+			long key = getLong(pos);
+			if (key == 0) return -1;
+			if (key == id) {
+				long offset = getLong(pos + 8);
+				return offset == 0 ? -1 : offset;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	// Position of the slot of a photo, or of a free one; -1 when the table is too full
+	private long findSlot(long id) {
+		int mask = capacity - 1;
+		int slot = hash(id) & mask;
+		for (int n = 0; n < capacity; n++) {
+			long pos = headerSize + (long) slot * slotSize;
+			long key = getLong(pos);
+			if (key == id) return pos;
+			if (key == 0) {
+				// Keep probe sequences short
+				return getLong(countPos) >= capacity - (capacity >> 2) ? -1 : pos;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private static int hash(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private ByteBuffer chunk(long offset) {
+		ByteBuffer b = chunks[(int) (offset >>> chunkShift)].duplicate();
+		b.position((int) (offset & (chunkSize - 1)));
+		return b;
+	}
+
+	private long getLong(long pos) {
+		return (long) LONGS.getAcquire((ByteBuffer) chunks[(int) (pos >>> chunkShift)], (int) (pos & (chunkSize - 1)));
+	}
+
+	private void setLongRelease(long pos, long value) {
+		LONGS.setRelease((ByteBuffer) chunks[(int) (pos >>> chunkShift)], (int) (pos & (chunkSize - 1)), value);
+	}
+
+	private static byte[] serialize(Element element) {
+		XMLOutputter out = new XMLOutputter(Format.getCompactFormat().setEncoding("UTF-8"));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		try {
+			out.output(element, bytes);
+		} catch (IOException ex) {
+			// Not with a ByteArrayOutputStream
+			throw new FlickrRuntimeException("Can't serialize metadata", ex);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Element parse(byte[] bytes) {
+		if (bytes == null) return null;
+		try {
+			return new SAXBuilder().build(new StringReader(new String(bytes, UTF8))).detachRootElement();
+		} catch (JDOMException ex) {
+			Logger.global.warning("Corrupted record in photo metadata store: "+ex.getMessage());
+			return null;
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package org.jickr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jickr.License.LicenseType;
+
+/**
+ * Copies photos from one Flickr account to another, without any local disk.
+ *
+ * Each original is streamed from the source download connection straight into
+ * the multipart body of the upload.  Title, description, tags, privacy, safety
+ * level, license and set membership are carried across; sets are matched by
+ * title in the target account, and created when missing.
+ *
+ * Migrations run on a fixed number of threads, and the bytes being transferred
+ * at the same time are bounded: the size of the original is asked first, and
+ * the download is only opened once enough of the in-flight budget is free, so
+ * waiting photos hold no connection.  A single photo bigger than the whole
+ * budget, or of unknown size, is transferred alone.
+ *
+ * Example of use:
+ * 	 PhotoMigration migration = new PhotoMigration(photographer, agency, 4, 256*1024*1024);
+ * 	 for (CompletableFuture&lt;String&gt; id : migration.migrate(photographer.getPublicPhotos())) id.get();
+ * 	 migration.shutdown();
+ */
+public class PhotoMigration {
+
+	// In-flight bytes are accounted in KB, to fit Semaphore permits
+	private static final int unit = 1024;
+
+	private final User source;
+	private final User target;
+	private final ExecutorService executor;
+	private final Semaphore inFlight;
+	private final int inFlightPermits;
+
+	// Target sets by title, guarded by this
+	private Map<String,PhotoSet> targetSets = null;
+	// Descriptions of the source sets by ID, guarded by this
+	private final Map<String,String> sourceDescriptions = new HashMap<String,String>();
+
+	/**
+	 * Creates a migration pipeline.
+	 *
+	 * @param source owner of the photos, authenticated with READ permission
+	 * @param target account receiving the copies, authenticated with WRITE permission
+	 * @param parallelism number of photos migrated at the same time
+	 * @param maxInFlightBytes maximum number of bytes being transferred at the same time
+	 */
+	public PhotoMigration(User source, User target, int parallelism, long maxInFlightBytes) {
+		if (source == null || target == null) throw new NullPointerException("source and target users cannot be null");
+		if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be positive");
+		if (maxInFlightBytes < unit) throw new IllegalArgumentException("maxInFlightBytes must be at least "+unit);
+		this.source = source;
+		this.target = target;
+		this.inFlightPermits = (int) Math.min(Integer.MAX_VALUE, maxInFlightBytes / unit);
+		this.inFlight = new Semaphore(inFlightPermits, true);
+		this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jickr-migration");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Migrate photos.
+	 *
+	 * @param photos photos of the source account
+	 * @return one future per photo, in the same order, completed with the id of the copy
+	 */
+	public List<CompletableFuture<String>> migrate(Collection<Photo> photos) {
+		List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>(photos.size());
+		for (Photo photo : photos) {
+			futures.add(migrate(photo));
+		}
+		return futures;
+	}
+
+	/**
+	 * Migrate one photo.
+	 *
+	 * @param photo photo of the source account
+	 * @return a future completed with the id of the copy
+	 */
+	public CompletableFuture<String> migrate(final Photo photo) {
+		if (photo == null) throw new NullPointerException("photo cannot be null");
+		final CompletableFuture<String> future = new CompletableFuture<String>();
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					future.complete(copy(photo));
+				} catch (Exception ex) {
+					future.completeExceptionally(ex);
+				} finally {
+					Auth.resetAuthContext();
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Stop the worker threads once the queued migrations are done.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private String copy(Photo photo) throws FlickrException, InterruptedException {
+		// Read everything we need as the source user
+		Auth.setAuthContext(source);
+		boolean video = photo.getMedia() == Photo.Media.VIDEO;
+		Photo.PhotoSize original = photo.getPhotoSize(video ? Photo.Size.VIDEO_ORIGINAL : Photo.Size.ORIGINAL);
+		if (original == null) throw new FlickrException("No original available for photo "+photo.getID());
+		Privacy privacy = photo.getPerms().getPermission();
+		LicenseType license = photo.getLicence();
+		List<String[]> sets = getSets(photo);
+
+		URL url = original.getURL();
+		long size = getSize(url);
+		int permits = size < 0 ? inFlightPermits : (int) Math.min(inFlightPermits, Math.max(1, (size + unit - 1) / unit));
+		inFlight.acquire(permits);
+
+		InputStream in = null;
+		try {
+			long length;
+			try {
+				URLConnection con = url.openConnection();
+				in = con.getInputStream();
+				length = con.getContentLengthLong();
+			} catch (IOException ex) {
+				throw new FlickrException("Can't download original of photo "+photo.getID()+": "+ex.getMessage(), ex);
+			}
+			if (length < 0) throw new FlickrException("Unknown length for original of photo "+photo.getID());
+
+			String path = original.getURL().getPath();
+			String fileName = path.substring(path.lastIndexOf('/') + 1);
+			PhotoUpload upload = PhotoUpload.Builder.fromSource(UploadSource.fromStream(in, length, fileName))
+				.title(nonNull(photo.getTitle()))
+				.description(nonNull(photo.getDescription()))
+				.tags(photo.getTags())
+				.publicFlag(privacy == Privacy.PUBLIC)
+				.friendFlag(privacy == Privacy.FRIENDS || privacy == Privacy.FRIENDSANDFAMILY)
+				.familyFlag(privacy == Privacy.FAMILY || privacy == Privacy.FRIENDSANDFAMILY)
+				.safetyLevel(photo.getSafety_level())
+				.build();
+
+			// And write everything as the target user
+			Auth.setAuthContext(target);
+			String id = Photo.uploadNewPhoto(upload);
+			if (license != null && license != LicenseType.ALL_RIGHTS_RESERVED) License.updateLicense(id, license);
+			for (String[] set : sets) {
+				addToTargetSet(set[0], set[1], id);
+			}
+			return id;
+		} finally {
+			inFlight.release(permits);
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ex) {
+					// The upload is over either way
+				}
+			}
+		}
+	}
+
+	// Size of a download, without downloading it.  -1 if unknown.
+	private static long getSize(URL url) {
+		try {
+			URLConnection con = url.openConnection();
+			if (con instanceof HttpURLConnection) ((HttpURLConnection) con).setRequestMethod("HEAD");
+			try {
+				return con.getContentLengthLong();
+			} finally {
+				if (con instanceof HttpURLConnection) ((HttpURLConnection) con).disconnect();
+			}
+		} catch (IOException ex) {
+			// The download itself will tell
+			return -1;
+		}
+	}
+
+	// Title and description of the sets the photo belongs to, in the source account.
+	// Contexts don't carry descriptions: they are read once per set.
+	private List<String[]> getSets(Photo photo) throws FlickrException {
+		Request req = new Request();
+		req.setParameter("method","flickr.photos.getAllContexts");
+		req.setParameter("photo_id",photo.getID());
+		Document doc = req.getResponse();
+		List<String[]> sets = new ArrayList<String[]>();
+		for (Element set : (List<Element>) doc.getRootElement().getChildren("set")) {
+			String id = set.getAttributeValue("id");
+			String description;
+			synchronized (this) {
+				description = sourceDescriptions.get(id);
+			}
+			if (description == null) {
+				description = nonNull(PhotoSet.findByID(id).getDescription());
+				synchronized (this) {
+					sourceDescriptions.put(id, description);
+				}
+			}
+			sets.add(new String[] { set.getAttributeValue("title"), description });
+		}
+		return sets;
+	}
+
+	// Add the photo to the target set of that title, creating the set if needed.
+	// Called as the target user.
+	private void addToTargetSet(String title, String description, String photoId) throws FlickrException {
+		PhotoSet set;
+		synchronized (this) {
+			if (targetSets == null) {
+				targetSets = new HashMap<String,PhotoSet>();
+				for (PhotoSet s : target.getPhotoSets()) {
+					if (!targetSets.containsKey(s.getTitle())) targetSets.put(s.getTitle(), s);
+				}
+			}
+			set = targetSets.get(title);
+			if (set == null) {
+				// A new set is created around its first photo
+				targetSets.put(title, PhotoSet.findByID(PhotoSet.newPhotoSet(title, description, photoId)));
+				return;
+			}
+		}
+		set.add(photoId);
+	}
+
+	private static String nonNull(String value) {
+		return value == null ? "" : value;
+	}
+}
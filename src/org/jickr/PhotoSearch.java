@@ -13,6 +13,11 @@
 
 package org.jickr;
 
+import java.util.Date;
+import java.util.EnumSet;
+
+import org.jickr.License.LicenseType;
+
 /**
  * Class used for complex searches on Photo objects.  This class should
  * be populated with search terms, and then passed to
@@ -21,13 +26,26 @@ package org.jickr;
  * @see org.jickr.Photo#search(PhotoSearch)
  * @author Jim Driscoll <a href="mailto:jgd@jamesgdriscoll.com">jgd@jamesgdriscoll.com</a>
  */
-public class PhotoSearch {
+public class PhotoSearch implements Cloneable {
     
     private User user = null;
     private String tags = null;
     private Tagmode tagmode = null;
     private String text = null;
     private Privacy priv = null;
+    private Date minUploadDate = null;
+    private Date maxUploadDate = null;
+    private Date minTakenDate = null;
+    private Date maxTakenDate = null;
+    private Photo.Media media = null;
+    private EnumSet<LicenseType> licenses = null;
+    private Photo.ContentType contentType = null;
+    private Photo.SafetyLevel safeSearch = null;
+    private double[] bbox = null;
+    private double[] location = null;
+    private Sort sort = null;
+    private String extras = null;
+    private int perPage = 0;
     
     /**
      * The join mode for multitag searches.
@@ -42,10 +60,54 @@ public class PhotoSearch {
          */
         ALL }
     
+    /**
+     * Order of the results.
+     */
+    public enum Sort {
+        DATE_POSTED_DESC("date-posted-desc"),
+        DATE_POSTED_ASC("date-posted-asc"),
+        DATE_TAKEN_DESC("date-taken-desc"),
+        DATE_TAKEN_ASC("date-taken-asc"),
+        INTERESTINGNESS_DESC("interestingness-desc"),
+        INTERESTINGNESS_ASC("interestingness-asc"),
+        RELEVANCE("relevance");
+        
+        private final String xmlValue;
+        
+        Sort(String xmlValue) {
+            this.xmlValue = xmlValue;
+        }
+        
+        public String getXmlValue() {
+            return xmlValue;
+        }
+    }
+    
     /** Creates a new instance of PhotoSearch */
     public PhotoSearch() {
     }
     
+    /**
+     * Copy of the search terms, to change some of them.
+     */
+    PhotoSearch copy() {
+        try {
+            // Arrays and sets are never modified, only replaced; dates are mutable
+            PhotoSearch copy = (PhotoSearch) super.clone();
+            copy.minUploadDate = copyOf(minUploadDate);
+            copy.maxUploadDate = copyOf(maxUploadDate);
+            copy.minTakenDate = copyOf(minTakenDate);
+            copy.maxTakenDate = copyOf(maxTakenDate);
+            return copy;
+        } catch (CloneNotSupportedException ex) {
+            throw new FlickrRuntimeException("Can't copy PhotoSearch", ex);
+        }
+    }
+    
+    private static Date copyOf(Date date) {
+        return date == null ? null : (Date) date.clone();
+    }
+    
     /**
      * Search for Photos owned by the specified user.
      * @param user The user to search for.  Null to search for all users.
@@ -121,4 +183,235 @@ public class PhotoSearch {
     public Privacy getPrivacy() {
         return priv;
     }
+    
+    /**
+     * Search for Photos uploaded on or after this date.
+     * @param date The earliest upload date.  Null to clear.
+     */
+    public void setMinUploadDate(Date date) {
+        this.minUploadDate = date;
+    }
+    
+    /**
+     * Get the earliest upload date.
+     * @return The earliest upload date, null if unset.
+     */
+    public Date getMinUploadDate() {
+        return minUploadDate;
+    }
+    
+    /**
+     * Search for Photos uploaded on or before this date.
+     * @param date The latest upload date.  Null to clear.
+     */
+    public void setMaxUploadDate(Date date) {
+        this.maxUploadDate = date;
+    }
+    
+    /**
+     * Get the latest upload date.
+     * @return The latest upload date, null if unset.
+     */
+    public Date getMaxUploadDate() {
+        return maxUploadDate;
+    }
+    
+    /**
+     * Search for Photos taken on or after this date.
+     * @param date The earliest taken date.  Null to clear.
+     */
+    public void setMinTakenDate(Date date) {
+        this.minTakenDate = date;
+    }
+    
+    /**
+     * Get the earliest taken date.
+     * @return The earliest taken date, null if unset.
+     */
+    public Date getMinTakenDate() {
+        return minTakenDate;
+    }
+    
+    /**
+     * Search for Photos taken on or before this date.
+     * @param date The latest taken date.  Null to clear.
+     */
+    public void setMaxTakenDate(Date date) {
+        this.maxTakenDate = date;
+    }
+    
+    /**
+     * Get the latest taken date.
+     * @return The latest taken date, null if unset.
+     */
+    public Date getMaxTakenDate() {
+        return maxTakenDate;
+    }
+    
+    /**
+     * Search only for photos, or only for videos.
+     * @param media The media to search for.  Null to search for both.
+     */
+    public void setMedia(Photo.Media media) {
+        this.media = media;
+    }
+    
+    /**
+     * Get the media to search for.
+     * @return The media, null if unset.
+     */
+    public Photo.Media getMedia() {
+        return media;
+    }
+    
+    /**
+     * Search for Photos under any of these licenses.
+     * @param licenses The licenses to search for.  Null to search for all.
+     */
+    public void setLicenses(EnumSet<LicenseType> licenses) {
+        this.licenses = licenses == null ? null : EnumSet.copyOf(licenses);
+    }
+    
+    /**
+     * Get the licenses to search for.
+     * @return A copy of the licenses, null if unset.
+     */
+    public EnumSet<LicenseType> getLicenses() {
+        return licenses == null ? null : EnumSet.copyOf(licenses);
+    }
+    
+    /**
+     * Search for Photos of this content type.
+     * @param contentType The content type.  Null to search for all.
+     */
+    public void setContentType(Photo.ContentType contentType) {
+        this.contentType = contentType;
+    }
+    
+    /**
+     * Get the content type to search for.
+     * @return The content type, null if unset.
+     */
+    public Photo.ContentType getContentType() {
+        return contentType;
+    }
+    
+    /**
+     * Search for Photos of this safety level.  Only applies to the photos of
+     * the authenticated user and of users allowing it.
+     * @param safeSearch The safety level.  Null for Flickr's default.
+     */
+    public void setSafeSearch(Photo.SafetyLevel safeSearch) {
+        this.safeSearch = safeSearch;
+    }
+    
+    /**
+     * Get the safety level to search for.
+     * @return The safety level, null if unset.
+     */
+    public Photo.SafetyLevel getSafeSearch() {
+        return safeSearch;
+    }
+    
+    /**
+     * Search for geotagged Photos in a bounding box.  Clears any location
+     * set by <code>setLocation</code>.
+     * @param minLongitude West side of the box, in degrees.
+     * @param minLatitude South side of the box, in degrees.
+     * @param maxLongitude East side of the box, in degrees.
+     * @param maxLatitude North side of the box, in degrees.
+     */
+    public void setBoundingBox(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude) {
+        this.bbox = new double[] { minLongitude, minLatitude, maxLongitude, maxLatitude };
+        this.location = null;
+    }
+    
+    /**
+     * Get the bounding box to search in.
+     * @return {minLongitude, minLatitude, maxLongitude, maxLatitude}, null if unset.
+     */
+    public double[] getBoundingBox() {
+        return bbox == null ? null : bbox.clone();
+    }
+    
+    /**
+     * Search for geotagged Photos around a point.  Clears any bounding box
+     * set by <code>setBoundingBox</code>.
+     * @param latitude Latitude of the center, in degrees.
+     * @param longitude Longitude of the center, in degrees.
+     * @param radiusKm Radius of the search, in kilometers.  Flickr allows up to 32.
+     */
+    public void setLocation(double latitude, double longitude, double radiusKm) {
+        this.location = new double[] { latitude, longitude, radiusKm };
+        this.bbox = null;
+    }
+    
+    /**
+     * Get the point to search around.
+     * @return {latitude, longitude, radiusKm}, null if unset.
+     */
+    public double[] getLocation() {
+        return location == null ? null : location.clone();
+    }
+    
+    /**
+     * Clear the bounding box and the location.
+     */
+    public void clearGeo() {
+        this.bbox = null;
+        this.location = null;
+    }
+    
+    /**
+     * Set the order of the results.
+     * @param sort The order.  Null for Flickr's default, most recently posted first.
+     */
+    public void setSort(Sort sort) {
+        this.sort = sort;
+    }
+    
+    /**
+     * Get the order of the results.
+     * @return The order, null if unset.
+     */
+    public Sort getSort() {
+        return sort;
+    }
+    
+    /**
+     * Ask for extra information with each photo of the results, for instance
+     * "date_upload,tags".  The values are read with <code>Photo.getExtra</code>.
+     * @param extras Comma separated list of extras.  Null for none.
+     * @see org.jickr.Photo#getExtra(String)
+     */
+    public void setExtras(String extras) {
+        this.extras = extras;
+    }
+    
+    /**
+     * Get the extra information asked with each photo.
+     * @return Comma separated list of extras, null if unset.
+     */
+    public String getExtras() {
+        return extras;
+    }
+    
+    /**
+     * Set the number of photos of each page fetched from Flickr.  The number
+     * of photos of a search doesn't depend on it: smaller pages only mean more
+     * calls.
+     * @param perPage Between 1 and 500.  0 for the default of 500.
+     */
+    public void setPerPage(int perPage) {
+        if (perPage < 0 || perPage > 500) throw new IllegalArgumentException("perPage must be between 0 and 500");
+        this.perPage = perPage;
+    }
+    
+    /**
+     * Get the number of photos of each page.
+     * @return The page size, 0 if unset.
+     */
+    public int getPerPage() {
+        return perPage;
+    }
 }
\ No newline at end of file
@@ -14,7 +14,15 @@
 package org.jickr;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
 
 import org.jdom.Document;
 import org.jdom.Element;
@@ -28,11 +36,17 @@ import org.jdom.Element;
  */
 public class PhotoSet {
     
-    private String description;
-    private String title;
+    private volatile String description;
+    private volatile String title;
     private String id;
-    private int numPhotos;
-    private String primary; // Primary photo ID
+    private volatile int numPhotos;
+    private volatile String primary; // Primary photo ID
+    
+    // Loads the info missing from a collection tree, null when complete
+    private final OnceLoader infoLoader;
+    
+    // Photos per reorder call when the whole list can't be sent at once
+    private static final int reorderChunk = 500;
     
     
     /**
@@ -53,10 +67,88 @@ public class PhotoSet {
         this.numPhotos = Integer.parseInt(photoCountStr);
         this.title = photoset.getChildText("title");
         this.description = photoset.getChildText("description");
+        this.primary = photoset.getAttributeValue("primary");
+        this.infoLoader = null;
     }
     
     PhotoSet(String id) throws FlickrException {
         if (id == null) throw new FlickrRuntimeException("id cannot be null");
+        this.id = id;
+        this.infoLoader = new OnceLoader();
+        checkInfo();
+    }
+    
+    /**
+     * Creates a PhotoSet from a set of a collection tree, which only has the
+     * id, title and description.  The rest is loaded on first access.
+     */
+    private PhotoSet(String id, String title, String description) {
+        if (id == null) throw new FlickrRuntimeException("id cannot be null");
+        this.id = id;
+        this.title = title;
+        this.description = description;
+        this.infoLoader = new OnceLoader();
+    }
+    
+    /**
+     * Create a PhotoSet from a set element of flickr.collections.getTree,
+     * without calling Flickr.
+     */
+    static PhotoSet fromTreeElement(Element set) {
+        return new PhotoSet(set.getAttributeValue("id"), set.getAttributeValue("title"), set.getAttributeValue("description"));
+    }
+    
+    /**
+     * Create a PhotoSet known only by its ID, without calling Flickr.
+     */
+    static PhotoSet withID(String id) {
+        return new PhotoSet(id, null, null);
+    }
+    
+    /**
+     * Load the info of many PhotoSets at once, instead of one round trip per
+     * set the first time a getter is called.  Sets already complete are
+     * skipped.  Returns once every set is populated.
+     *
+     * @param sets The sets to load.
+     * @param parallelism Maximum number of concurrent calls to Flickr.
+     * @param limiter Rate limiter shared with other callers, may be null.
+     * @throws FlickrException The first error, once every call is done.
+     */
+    public static void hydrate(Collection<PhotoSet> sets, int parallelism, RateLimiter limiter) throws FlickrException {
+        if (sets == null) throw new NullPointerException("sets cannot be null");
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final PhotoSet set : sets) {
+            if (set.infoLoader == null || set.infoLoader.isDone()) continue;
+            tasks.add(new Callable<Void>() {
+                public Void call() throws FlickrException {
+                    set.checkInfo();
+                    return null;
+                }
+            });
+        }
+        Parallel.invokeAll(tasks, parallelism, limiter);
+    }
+    
+    private void checkInfo() throws FlickrException {
+        if (infoLoader == null || infoLoader.isDone()) return;
+        infoLoader.load(new OnceLoader.Loader() {
+            public void load() throws FlickrException {
+                loadInfo();
+            }
+        });
+    }
+    
+    // Getters don't declare FlickrException
+    private void checkInfoUnchecked() {
+        try {
+            checkInfo();
+        } catch (FlickrException ex) {
+            throw new FlickrRuntimeException("Can't load the info of set "+id, ex);
+        }
+    }
+    
+    private void loadInfo() throws FlickrException {
         Request req = new Request();
         req.setParameter("method","flickr.photosets.getInfo");
         req.setParameter("photoset_id",id);
@@ -64,7 +156,6 @@ public class PhotoSet {
         Document doc = req.getResponse();
         Element root = doc.getRootElement();
         Element photoset = root.getChild("photoset");
-        this.id = photoset.getAttributeValue("id");
         String photoCountStr = photoset.getAttributeValue("photos");
         if (photoCountStr == null)
             throw new FlickrException("Read Invalid value for PhotoCount from Flickr");
@@ -106,6 +197,7 @@ public class PhotoSet {
         Element root = doc.getRootElement();
         Element photoset = root.getChild("photoset");
         
+        ReadCache.changed(ReadCache.sets);
         // return PhotoSet
     	return photoset.getAttributeValue("id");
     }
@@ -133,6 +225,7 @@ public class PhotoSet {
      * @return The number of photos in the PhotoSet.
      */
     public int getNumPhotos() {
+        checkInfoUnchecked();
         return numPhotos;
     }
     
@@ -150,6 +243,7 @@ public class PhotoSet {
      * @return The ID of primary Photo on Flickr of this PhotoSet.
      */
     public String getPrimary() {
+		checkInfoUnchecked();
 		return primary;
 	}
 
@@ -161,10 +255,35 @@ public class PhotoSet {
      * @throws FlickrException for almost any error.
      */
     public PhotoList getPhotos() throws FlickrException {
+        return getPhotos(null);
+    }
+    
+    /**
+     * Retrieve the list of all the photos associated with this PhotoSet,
+     * asking Flickr for extra information about each photo.  The pages of the
+     * set are fetched concurrently.
+     * @param extras comma separated list of extras, as in
+     * <code>PhotoSearch.setExtras</code>, may be null
+     * @return photoset A list of photos for this Photoset.
+     * @throws FlickrException for almost any error.
+     */
+    public PhotoList getPhotos(String extras) throws FlickrException {
+        ReadCache cache = Flickr.getReadCache();
+        String key = cache == null ? null : ReadCache.key("set.photos", id+":"+extras);
+        if (cache != null) {
+            PhotoList cached = (PhotoList) cache.get(key);
+            if (cached != null) return cached;
+        }
+        long stamp = cache == null ? 0 : cache.stamp();
+        
         Request req = new Request();
         req.setParameter("method","flickr.photosets.getPhotos");
         req.setParameter("photoset_id",id);
-        return new PhotoList(req);
+        if (extras != null && extras.length() > 0) req.setParameter("extras",extras);
+        PhotoList photos = new PhotoList(req);
+        // A PhotoList can't be modified, it can be shared
+        if (cache != null) cache.put(key, photos, stamp, Collections.singletonList(ReadCache.setPhotos(id)));
+        return photos;
     }
     
     /**
@@ -173,6 +292,14 @@ public class PhotoSet {
      * @throws FlickrException in the event of any error.
      */
     public List<Comment> getComments() throws FlickrException {
+        ReadCache cache = Flickr.getReadCache();
+        String key = cache == null ? null : ReadCache.key("set.comments", id);
+        if (cache != null) {
+            List<Comment> cached = (List<Comment>) cache.get(key);
+            if (cached != null) return new ArrayList<Comment>(cached);
+        }
+        long stamp = cache == null ? 0 : cache.stamp();
+        
         List<Comment> commentList = new ArrayList();
         Request req = new Request();
         req.setParameter("method","flickr.photosets.comments.getList");
@@ -183,8 +310,9 @@ public class PhotoSet {
         
         List<Element> comments = root.getChild("comments").getChildren("comment");
         for (Element comment: comments) {
-            commentList.add(new Comment(Comment.Type.PHOTOSETCOMMENT,comment));
+            commentList.add(new Comment(Comment.Type.PHOTOSETCOMMENT,id,comment));
         }
+        if (cache != null) cache.put(key, new ArrayList<Comment>(commentList), stamp, Collections.singletonList(ReadCache.setComments(id)));
         return commentList;
     }
     
@@ -210,6 +338,7 @@ public class PhotoSet {
         req.setParameter("comment_text",commentText);
         
         Element root = req.getResponse().getRootElement();
+        ReadCache.changed(ReadCache.setComments(id));
         
         try {
             String commentID = root.getChild("comment").getAttributeValue("id");
@@ -237,13 +366,15 @@ public class PhotoSet {
         req.setParameter("title",titleText);
         if (descText != null) req.setParameter("description",descText);
         req.getResponse();
+        ReadCache.changed(ReadCache.setMeta(id));
         title = titleText;
         if (descText != null) description = descText;
         return;
     }
     
     /**
-     * Adds a photo to a PhotoSet.  Requires WRITE authentication.
+     * Adds a photo to a PhotoSet.  Requires WRITE authentication.  To add
+     * many photos, use <code>addAll</code>.
      * @param photo Photo to add to the PhotoSet.
      */
     public void add(Photo photo) throws FlickrException {
@@ -263,6 +394,7 @@ public class PhotoSet {
         req.setParameter("photoset_id",id);
         req.setParameter("photo_id",photoId);
         req.getResponse();
+        photosChanged(1);
         return;
     }
     
@@ -272,12 +404,250 @@ public class PhotoSet {
      */
     public void remove(Photo photo) throws FlickrException {
         if (photo == null) throw new NullPointerException("Photo cannot be null");
+        remove(photo.getID());
+        return;
+    }
+    
+    /**
+     * Set the photos of the PhotoSet, in order, with 4 concurrent calls if
+     * the set has to be edited photo by photo.
+     * @see org.jickr.PhotoSet#setPhotos(List, int, RateLimiter)
+     */
+    public void setPhotos(List<String> photoIds) throws FlickrException {
+        setPhotos(photoIds, 4, null);
+    }
+    
+    /**
+     * Set the photos of the PhotoSet, in order.  Requires WRITE authentication.
+     *
+     * The current photos are compared with the new ones first: nothing is
+     * sent if they are the same, only the order is sent if just the order
+     * changes, and otherwise the whole set is replaced in a single call.  If
+     * that call fails, the photos to add and to remove are sent one by one,
+     * concurrently, then the order.  The primary photo is kept if it stays in
+     * the set, else the first photo becomes the primary one.
+     *
+     * @param photoIds IDs of the photos of the set, in order.  Must not be empty.
+     * @param parallelism Maximum number of concurrent calls to Flickr.
+     * @param limiter Rate limiter shared with other callers, may be null.
+     * @throws FlickrException on any error.  The set may then be partly edited.
+     */
+    public void setPhotos(List<String> photoIds, int parallelism, RateLimiter limiter) throws FlickrException {
+        if (photoIds == null) throw new NullPointerException("Photo ids cannot be null");
+        List<String> target = new ArrayList<String>(new LinkedHashSet<String>(photoIds));
+        if (target.isEmpty()) throw new FlickrRuntimeException("A PhotoSet cannot be empty");
+        applyPhotos(getPhotoIDs(), target, parallelism, limiter);
+    }
+    
+    /**
+     * Add many photos to the PhotoSet, after the photos already in it.  Photos
+     * already in the set are skipped.  Requires WRITE authentication.
+     * @see org.jickr.PhotoSet#setPhotos(List, int, RateLimiter)
+     */
+    public void addAll(Collection<String> photoIds, int parallelism, RateLimiter limiter) throws FlickrException {
+        if (photoIds == null) throw new NullPointerException("Photo ids cannot be null");
+        List<String> current = getPhotoIDs();
+        LinkedHashSet<String> target = new LinkedHashSet<String>(current);
+        target.addAll(photoIds);
+        applyPhotos(current, new ArrayList<String>(target), parallelism, limiter);
+    }
+    
+    /**
+     * Remove many photos from the PhotoSet.  Photos not in the set are
+     * skipped.  At least one photo must remain.  Requires WRITE authentication.
+     * @see org.jickr.PhotoSet#setPhotos(List, int, RateLimiter)
+     */
+    public void removeAll(Collection<String> photoIds, int parallelism, RateLimiter limiter) throws FlickrException {
+        if (photoIds == null) throw new NullPointerException("Photo ids cannot be null");
+        List<String> current = getPhotoIDs();
+        List<String> target = new ArrayList<String>(current);
+        target.removeAll(new HashSet<String>(photoIds));
+        if (target.isEmpty()) throw new FlickrRuntimeException("A PhotoSet cannot be empty");
+        applyPhotos(current, target, parallelism, limiter);
+    }
+    
+    /**
+     * Add and remove photos in a single edit of the set, as in setPhotos.
+     * Added photos go after the photos already in the set.  Listing the set
+     * takes a permit from the limiter, the edit is left to the caller's own
+     * permit.
+     */
+    void editMembership(Collection<String> adds, Collection<String> removes, int parallelism, RateLimiter limiter) throws FlickrException {
+        if (limiter != null) {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new FlickrException("Interrupted while waiting to list set "+id, ie);
+            }
+        }
+        List<String> current = getPhotoIDs();
+        LinkedHashSet<String> target = new LinkedHashSet<String>(current);
+        target.removeAll(removes);
+        target.addAll(adds);
+        if (target.isEmpty()) throw new FlickrException("A PhotoSet cannot be empty");
+        applyPhotos(current, new ArrayList<String>(target), parallelism, limiter);
+    }
+    
+    /**
+     * Change the order of the photos of the PhotoSet, in a single call.  The
+     * photos not listed keep their place after the ones listed.  Requires
+     * WRITE authentication.
+     * @param photoIds IDs of photos of the set, in their new order.
+     * @throws FlickrException on any error.
+     */
+    public void reorder(List<String> photoIds) throws FlickrException {
+        if (photoIds == null) throw new NullPointerException("Photo ids cannot be null");
+        if (photoIds.isEmpty()) return;
+        Request req = new Request(Request.POST);
+        req.setParameter("method","flickr.photosets.reorderPhotos");
+        req.setParameter("photoset_id",id);
+        req.setParameter("photo_ids",join(photoIds));
+        req.getResponse();
+        photosChanged(0);
+    }
+    
+    // IDs of the photos of the set, in order
+    private List<String> getPhotoIDs() throws FlickrException {
+        Request req = new Request();
+        req.setParameter("method","flickr.photosets.getPhotos");
+        req.setParameter("photoset_id",id);
+        CompactPhotoList photos = new CompactPhotoList(req, 0);
+        List<String> ids = new ArrayList<String>(photos.size());
+        for (int i = 0; i < photos.size(); i++) {
+            ids.add(photos.getID(i));
+        }
+        return ids;
+    }
+    
+    // Go from the current photos to the target ones with as few calls as possible
+    private void applyPhotos(List<String> current, List<String> target, int parallelism, RateLimiter limiter) throws FlickrException {
+        if (current.equals(target)) return;
+        Set<String> currentSet = new HashSet<String>(current);
+        Set<String> targetSet = new HashSet<String>(target);
+        if (currentSet.equals(targetSet)) {
+            reorder(target);
+            return;
+        }
+        
+        checkInfo();
+        String newPrimary = targetSet.contains(primary) ? primary : target.get(0);
+        try {
+            Request req = new Request(Request.POST);
+            req.setParameter("method","flickr.photosets.editPhotos");
+            req.setParameter("photoset_id",id);
+            req.setParameter("primary_photo_id",newPrimary);
+            req.setParameter("photo_ids",join(target));
+            req.getResponse();
+            photosChanged(0);
+        } catch (FlickrException ex) {
+            if (!isRetryable(ex)) throw ex;
+            Logger.global.warning("Can't edit set "+id+" in one call, editing it photo by photo: "+ex.getMessage());
+            // Adds first, so the set is never empty
+            List<Callable<Void>> adds = new ArrayList<Callable<Void>>();
+            for (final String photoId : target) {
+                if (currentSet.contains(photoId)) continue;
+                adds.add(new Callable<Void>() {
+                    public Void call() throws FlickrException {
+                        add(photoId);
+                        return null;
+                    }
+                });
+            }
+            Parallel.invokeAll(adds, parallelism, limiter);
+            if (!targetSet.contains(primary)) setPrimary(newPrimary);
+            List<Callable<Void>> removes = new ArrayList<Callable<Void>>();
+            for (final String photoId : current) {
+                if (targetSet.contains(photoId)) continue;
+                removes.add(new Callable<Void>() {
+                    public Void call() throws FlickrException {
+                        remove(photoId);
+                        return null;
+                    }
+                });
+            }
+            Parallel.invokeAll(removes, parallelism, limiter);
+            reorderFrom(getPhotoIDs(), target);
+        }
+        if (!newPrimary.equals(primary)) ReadCache.changed(ReadCache.setMeta(id));
+        primary = newPrimary;
+        numPhotos = target.size();
+    }
+    
+    // Put the photos in the target order without sending the whole list,
+    // which may be what the failed editPhotos call couldn't send.  Only the
+    // photos before the matching tail are reordered, a chunk at a time from
+    // the last one, as each call puts its photos first.
+    private void reorderFrom(List<String> actual, List<String> target) throws FlickrException {
+        int end = target.size();
+        if (actual.size() == end) {
+            while (end > 0 && target.get(end - 1).equals(actual.get(end - 1))) end--;
+        }
+        for (int to = end; to > 0; to -= reorderChunk) {
+            reorder(target.subList(Math.max(0, to - reorderChunk), to));
+        }
+    }
+    
+    // Whether a failed call may still work when made again, or as smaller
+    // calls: transport and HTTP errors (a request too large to send) and
+    // Flickr's "service unavailable" (105) and "write operation failed" (106).
+    // A missing set, an unknown photo or a permission error would fail the
+    // same way every time.
+    static boolean isRetryable(FlickrException ex) {
+        switch (ex.getCode()) {
+            case 0: case -999: case 105: case 106:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    private void setPrimary(String photoId) throws FlickrException {
+        Request req = new Request(Request.POST);
+        req.setParameter("method","flickr.photosets.setPrimaryPhoto");
+        req.setParameter("photoset_id",id);
+        req.setParameter("photo_id",photoId);
+        req.getResponse();
+        ReadCache.changed(ReadCache.setMeta(id));
+    }
+    
+    private void remove(String photoId) throws FlickrException {
         Request req = new Request(Request.POST);
         req.setParameter("method","flickr.photosets.removePhoto");
         req.setParameter("photoset_id",id);
-        req.setParameter("photo_id",photo.getID());
+        req.setParameter("photo_id",photoId);
         req.getResponse();
-        return;
+        photosChanged(-1);
+    }
+    
+    /**
+     * Evict the cached reads of the photos of this set, and update the photo
+     * count if it is known.
+     * @param delta photos added, negative if removed
+     */
+    void photosChanged(int delta) {
+        ReadCache.changed(ReadCache.setPhotos(id));
+        if (delta != 0 && (infoLoader == null || infoLoader.isDone())) {
+            synchronized (this) {
+                numPhotos += delta;
+            }
+        }
+    }
+    
+    /**
+     * Dependencies of a read listing this set.
+     */
+    List<String> dependencies() {
+        return Arrays.asList(ReadCache.setMeta(id), ReadCache.setPhotos(id));
+    }
+    
+    private static String join(List<String> ids) {
+        StringBuilder joined = new StringBuilder();
+        for (String photoId : ids) {
+            if (joined.length() > 0) joined.append(',');
+            joined.append(photoId);
+        }
+        return joined.toString();
     }
     
     /**
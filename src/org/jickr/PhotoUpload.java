@@ -18,12 +18,15 @@ import org.jickr.Photo.SafetyLevel;
  *                                                         .publicFlag(true)
  *                                                         .build();
  * 
+ * Photos generated in memory, or relayed from another store, don't need a temporary file:
+ * 	 PhotoUpload.Builder.fromSource(UploadSource.fromStream(in, length, "moon.jpg")).build();
+ * 
  * @author jbrek
  *
  */
 public class PhotoUpload {
 
-	private final File photo; 
+	private final UploadSource source; 
     private final String title;
     private final String description;
     private final Collection<String> tags;
@@ -36,7 +39,7 @@ public class PhotoUpload {
     private final ContentType contentType;
 
     private PhotoUpload(Builder builder) {
-		this.photo = builder.photo;
+		this.source = builder.source;
 		this.title = builder.title;
 		this.description = builder.description;
 		this.tags = builder.tags;
@@ -49,8 +52,22 @@ public class PhotoUpload {
 		this.contentType = builder.contentType;
 	}
     
+	/**
+	 * Get the photo file to upload.
+	 * 
+	 * @return the file, or null if the photo doesn't come from a java.io.File
+	 */
 	public File getPhoto() {
-		return photo;
+		return source == null ? null : source.getFile();
+	}
+
+	/**
+	 * Get the content to upload.
+	 * 
+	 * @return the upload source
+	 */
+	public UploadSource getSource() {
+		return source;
 	}
 
 	public Boolean isHidden() {
@@ -111,7 +128,7 @@ public class PhotoUpload {
      */
     public static class Builder {
     	// required fields
-    	private final File photo;
+    	private final UploadSource source;
     	
     	// optional fields
     	private String title = "";
@@ -126,9 +143,22 @@ public class PhotoUpload {
 	    private ContentType contentType = ContentType.PHOTO_VIDEO;
 	    
 	    public Builder(File photo) {
-			this.photo = photo;
+			this.source = photo == null ? null : UploadSource.fromFile(photo);
 		}
 	    
+	    private Builder(UploadSource source) {
+	    	this.source = source;
+	    }
+	    
+	    /**
+	     * Upload from any source: Path, byte[], ByteBuffer or InputStream with a known length.
+	     * A factory rather than a constructor, so new Builder(null) still means a File.
+	     * @param source the content to upload
+	     */
+	    public static Builder fromSource(UploadSource source) {
+	    	return new Builder(source);
+	    }
+	    
 	    public Builder title(String val) { this.title = val; return this; }
 	    public Builder description(String val) { this.description = val; return this; }
 	    public Builder tags(Collection<String> values) { this.tags = values; return this; }
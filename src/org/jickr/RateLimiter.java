@@ -0,0 +1,43 @@
+package org.jickr;
+
+/**
+ * Limits the rate of calls made to Flickr.  Permits are handed out at a steady
+ * pace: a caller asking for a permit sooner than allowed is put to sleep.
+ *
+ * A single RateLimiter can be shared by every thread, and every batch operation,
+ * talking to Flickr on behalf of the same API key.
+ *
+ * Example of use:
+ * 	 RateLimiter limiter = new RateLimiter(1); // one call per second, Flickr's nominal budget
+ * 	 Photo.hydrate(photos, EnumSet.of(Photo.Field.INFO), 8, limiter);
+ */
+public class RateLimiter {
+
+	private final long intervalNanos;
+	// Time at which the next permit is available, guarded by this
+	private long nextFree = System.nanoTime();
+
+	/**
+	 * Creates a RateLimiter.
+	 * @param permitsPerSecond number of calls allowed per second
+	 */
+	public RateLimiter(double permitsPerSecond) {
+		if (permitsPerSecond <= 0) throw new IllegalArgumentException("permitsPerSecond must be positive");
+		this.intervalNanos = (long) (1000000000L / permitsPerSecond);
+	}
+
+	/**
+	 * Wait until a call is allowed.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void acquire() throws InterruptedException {
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			if (nextFree < now) nextFree = now;
+			wait = nextFree - now;
+			nextFree += intervalNanos;
+		}
+		if (wait > 0) Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+	}
+}
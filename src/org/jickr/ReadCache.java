@@ -0,0 +1,262 @@
+package org.jickr;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the lists read from Flickr, kept coherent with the changes made
+ * through this library.
+ *
+ * Every cached read declares the objects it depends on, such as the comments
+ * of a photo, the photos of a set or the pool of a group.  Every write method
+ * declares the objects it changes, and once Flickr accepted the change, the
+ * reads depending on them are evicted.  Counts held by the objects themselves,
+ * such as the number of photos of a set or of comments of a photo, are
+ * updated in place.  So a program reads its own writes, even with the cache
+ * on; only changes made elsewhere, on Flickr's site or by other programs, can
+ * be seen late, until the time to live is over.
+ *
+ * The reads cached are the comments of photos and sets, the photos of sets,
+ * group pools, favorites, and the sets and collections of users.  Results
+ * depend on the authenticated user, who is part of the key.
+ *
+ * Example of use:
+ * 	 Flickr.setReadCache(new ReadCache(5 * 60 * 1000L, 1000));
+ *
+ * @see org.jickr.Flickr#setReadCache(ReadCache)
+ */
+public class ReadCache {
+
+	// A cached read
+	private static final class Entry {
+		final Object value;
+		final long expires;
+		final Collection<String> dependencies;
+
+		Entry(Object value, long expires, Collection<String> dependencies) {
+			this.value = value;
+			this.expires = expires;
+			this.dependencies = dependencies;
+		}
+	}
+
+	private final long ttl;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	// All guarded by entries
+	private final HashMap<String,Set<String>> dependents = new HashMap<String,Set<String>>();
+	private long invalidations = 0;
+	// Access ordered
+	private final LinkedHashMap<String,Entry> entries;
+
+	/**
+	 * Creates a cache.
+	 * @param ttlMillis time to live of a read
+	 * @param maxEntries maximum number of reads kept
+	 */
+	public ReadCache(long ttlMillis, final int maxEntries) {
+		if (ttlMillis <= 0) throw new IllegalArgumentException("ttlMillis must be positive");
+		if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive");
+		this.ttl = ttlMillis;
+		this.entries = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+				if (size() <= maxEntries) return false;
+				unlink(eldest.getKey(), eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Drop every cached read.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			dependents.clear();
+			invalidations++;
+		}
+	}
+
+	/**
+	 * Drop the expired reads.  They are otherwise dropped when looked up, or
+	 * when the cache is full.
+	 */
+	public void purge() {
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			for (Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String,Entry> entry = it.next();
+				if (entry.getValue().expires <= now) {
+					unlink(entry.getKey(), entry.getValue());
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the number of cached reads.
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Get the number of reads served from the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of reads sent to Flickr because they weren't cached.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get a cached read.
+	 * @param key key of the read, from <code>key</code>
+	 * @return the value, null if not cached or expired
+	 */
+	Object get(String key) {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && entry.expires <= System.currentTimeMillis()) {
+				entries.remove(key);
+				unlink(key, entry);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Get a stamp to pass to <code>put</code>, taken before reading from Flickr.
+	 */
+	long stamp() {
+		synchronized (entries) {
+			return invalidations;
+		}
+	}
+
+	/**
+	 * Cache a read, unless a write happened since it was sent: the value
+	 * could miss that write.
+	 * @param key key of the read
+	 * @param value the value read
+	 * @param stamp stamp taken before the read was sent
+	 * @param dependencies the objects the read depends on
+	 */
+	void put(String key, Object value, long stamp, Collection<String> dependencies) {
+		synchronized (entries) {
+			if (stamp != invalidations) return;
+			Entry old = entries.remove(key);
+			if (old != null) unlink(key, old);
+			entries.put(key, new Entry(value, System.currentTimeMillis() + ttl, dependencies));
+			for (String dependency : dependencies) {
+				Set<String> keys = dependents.get(dependency);
+				if (keys == null) {
+					keys = new HashSet<String>();
+					dependents.put(dependency, keys);
+				}
+				keys.add(key);
+			}
+		}
+	}
+
+	/**
+	 * Evict the reads depending on an object that changed.
+	 * @param dependency the object, as declared by the reads
+	 */
+	void invalidate(String dependency) {
+		synchronized (entries) {
+			invalidations++;
+			Set<String> keys = dependents.remove(dependency);
+			if (keys == null) return;
+			for (String key : keys) {
+				Entry entry = entries.remove(key);
+				if (entry != null) unlink(key, entry);
+			}
+		}
+	}
+
+	// Guarded by entries
+	private void unlink(String key, Entry entry) {
+		for (String dependency : entry.dependencies) {
+			Set<String> keys = dependents.get(dependency);
+			if (keys == null) continue;
+			keys.remove(key);
+			if (keys.isEmpty()) dependents.remove(dependency);
+		}
+	}
+
+	/**
+	 * Key of a read, for the authenticated user.
+	 * @param read name of the read
+	 * @param id the object read
+	 */
+	static String key(String read, String id) {
+		User user = Auth.getAuthContext();
+		return read+":"+id+"@"+(user == null ? "" : user.getNSID());
+	}
+
+	/**
+	 * Evict the reads depending on objects that changed, from the cache in use.
+	 * Write methods call this once Flickr accepted their change.
+	 * @param dependencies the objects changed
+	 */
+	static void changed(String... dependencies) {
+		ReadCache cache = Flickr.getReadCache();
+		if (cache == null) return;
+		for (String dependency : dependencies) {
+			cache.invalidate(dependency);
+		}
+	}
+
+	// Objects the reads depend on, and the writes change
+
+	static String photoComments(String photoId) {
+		return "photo:"+photoId+":comments";
+	}
+
+	static String setComments(String setId) {
+		return "set:"+setId+":comments";
+	}
+
+	static String setPhotos(String setId) {
+		return "set:"+setId+":photos";
+	}
+
+	static String setMeta(String setId) {
+		return "set:"+setId+":meta";
+	}
+
+	static String groupPool(String groupId) {
+		return "group:"+groupId+":pool";
+	}
+
+	// Any user's favorites, as the user of a write isn't always known
+	static final String favorites = "favorites";
+	// Any user's list of sets
+	static final String sets = "sets";
+	// Any user's collection trees
+	static final String collections = "collections";
+}
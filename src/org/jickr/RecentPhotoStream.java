@@ -0,0 +1,385 @@
+package org.jickr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.jdom.Element;
+
+/**
+ * A stream of the photos uploaded to Flickr, polled from flickr.photos.getRecent.
+ *
+ * Every new photo is delivered once to each subscriber, oldest first.  The poll
+ * interval follows the observed upload rate, aiming at half a page of new
+ * photos per poll; when a whole page is new, the following pages are fetched
+ * too, and the next poll comes sooner.
+ *
+ * Photos already delivered are recognized with a ring of the most recent IDs,
+ * and, for older IDs, with two generations of Bloom filters.  Both are bounded:
+ * the memory used doesn't grow with the time the stream runs.
+ *
+ * Delivery goes through a SubmissionPublisher: when a subscriber doesn't
+ * request more photos and its buffer is full, polling waits.  The lag metrics
+ * tell how far behind the uploads the deliveries are.
+ *
+ * Example of use:
+ * 	 RecentPhotoStream stream = new RecentPhotoStream();
+ * 	 stream.subscribe(moderationQueue);
+ * 	 stream.start();
+ */
+public class RecentPhotoStream implements Flow.Publisher<Photo>, AutoCloseable {
+
+	private static final int perPage = 500;
+	private static final int maxPages = 10;
+
+	private final User user;
+	private final long minInterval;
+	private final long maxInterval;
+	private final SubmissionPublisher<Photo> publisher;
+	private final ScheduledExecutorService scheduler;
+	private final SeenFilter seen;
+
+	// Only touched by the polling thread
+	private long interval;
+	private double rate = 0;
+	private long lastPoll = 0;
+
+	// Metrics
+	private final AtomicLong polls = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong gaps = new AtomicLong();
+	private volatile long lastLag = 0;
+	private volatile long maxLag = 0;
+	private volatile long currentInterval;
+	private volatile double currentRate = 0;
+
+	/**
+	 * Creates a stream polling as the user in the current AuthContext, between
+	 * every 5 seconds and every minute, remembering the last 10000 IDs exactly.
+	 */
+	public RecentPhotoStream() {
+		this(Auth.getAuthContext(), 5000, 60000, 10000, Flow.defaultBufferSize(), ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Creates a stream.
+	 *
+	 * @param user user to poll as, may be null
+	 * @param minIntervalMillis shortest delay between two polls
+	 * @param maxIntervalMillis longest delay between two polls
+	 * @param ringSize number of recent IDs remembered exactly
+	 * @param bufferSize maximum number of photos buffered per subscriber
+	 * @param executor executor running the subscribers
+	 */
+	public RecentPhotoStream(User user, long minIntervalMillis, long maxIntervalMillis, int ringSize, int bufferSize, Executor executor) {
+		if (minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis)
+			throw new IllegalArgumentException("Invalid poll intervals");
+		if (ringSize <= 0) throw new IllegalArgumentException("ringSize must be positive");
+		this.user = user;
+		this.minInterval = minIntervalMillis;
+		this.maxInterval = maxIntervalMillis;
+		this.interval = minIntervalMillis;
+		this.currentInterval = minIntervalMillis;
+		this.seen = new SeenFilter(ringSize, ringSize * 100);
+		this.publisher = new SubmissionPublisher<Photo>(executor, bufferSize);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jickr-recent-photos");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public void subscribe(Flow.Subscriber<? super Photo> subscriber) {
+		publisher.subscribe(subscriber);
+	}
+
+	/**
+	 * Start polling.
+	 */
+	public void start() {
+		scheduler.execute(new Runnable() {
+			public void run() {
+				poll();
+			}
+		});
+	}
+
+	/**
+	 * Stop polling, and complete the subscribers once they got the photos
+	 * already buffered.
+	 */
+	public void close() {
+		scheduler.shutdownNow();
+		publisher.close();
+	}
+
+	/**
+	 * Get the number of photos delivered.
+	 */
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * Get the number of photos seen again, and not delivered twice.
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * Get the number of polls.
+	 */
+	public long getPolls() {
+		return polls.get();
+	}
+
+	/**
+	 * Get the number of polls where photos may have been missed: every page
+	 * fetched was new.
+	 */
+	public long getGaps() {
+		return gaps.get();
+	}
+
+	/**
+	 * Get the delay between upload and delivery of the last photo delivered.
+	 * @return lag in milliseconds
+	 */
+	public long getLagMillis() {
+		return lastLag;
+	}
+
+	/**
+	 * Get the longest delay between upload and delivery.
+	 * @return lag in milliseconds
+	 */
+	public long getMaxLagMillis() {
+		return maxLag;
+	}
+
+	/**
+	 * Get the number of photos buffered for the slowest subscriber.
+	 */
+	public int getBacklog() {
+		return publisher.estimateMaximumLag();
+	}
+
+	/**
+	 * Get the current delay between two polls.
+	 * @return interval in milliseconds
+	 */
+	public long getPollIntervalMillis() {
+		return currentInterval;
+	}
+
+	/**
+	 * Get the observed upload rate.
+	 * @return new photos per second
+	 */
+	public double getUploadRate() {
+		return currentRate;
+	}
+
+	private void poll() {
+		if (publisher.isClosed()) return;
+		if (user != null) Auth.setAuthContext(user);
+		try {
+			pollOnce();
+		} catch (FlickrException ex) {
+			Logger.global.warning("Error polling recent photos: "+ex.getMessage());
+			interval = Math.min(interval * 2, maxInterval);
+		} catch (RuntimeException ex) {
+			// Keep polling whatever happened
+			Logger.global.warning("Error polling recent photos: "+ex);
+			interval = Math.min(interval * 2, maxInterval);
+		} finally {
+			if (user != null) Auth.resetAuthContext();
+		}
+		currentInterval = interval;
+		if (scheduler.isShutdown() || publisher.isClosed()) return;
+		try {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					poll();
+				}
+			}, interval, TimeUnit.MILLISECONDS);
+		} catch (java.util.concurrent.RejectedExecutionException ex) {
+			// Closed meanwhile
+		}
+	}
+
+	private void pollOnce() throws FlickrException {
+		long now = System.currentTimeMillis();
+		Request req = new Request();
+		req.setParameter("method","flickr.photos.getRecent");
+		req.setParameter("extras","date_upload");
+		req.setParameter("per_page",Integer.toString(perPage));
+
+		// Newest first, until a page holds a photo already seen
+		List<Element> fresh = new ArrayList<Element>();
+		List<Element> photos = new ArrayList<Element>();
+		boolean overlap = false;
+		int page = 0;
+		int pages;
+		do {
+			page++;
+			photos.clear();
+			pages = PhotoList.fetchPage(req, page, photos);
+			for (Element photo : photos) {
+				if (seen.contains(photo.getAttributeValue("id"))) {
+					overlap = true;
+					duplicates.incrementAndGet();
+				} else {
+					fresh.add(photo);
+				}
+			}
+		} while (!overlap && page < Math.min(pages, maxPages));
+		polls.incrementAndGet();
+		if (!overlap && lastPoll != 0) gaps.incrementAndGet();
+
+		// Deliver oldest first, waiting for slow subscribers
+		for (int i = fresh.size() - 1; i >= 0; i--) {
+			Element photo = fresh.get(i);
+			if (!seen.add(photo.getAttributeValue("id"))) continue;
+			try {
+				publisher.submit(PhotoIdentityMap.fromElement(photo));
+			} catch (IllegalStateException ex) {
+				// Closed while waiting for the subscribers
+				return;
+			}
+			delivered.incrementAndGet();
+			String upload = photo.getAttributeValue("dateupload");
+			if (upload != null) {
+				try {
+					long lag = System.currentTimeMillis() - Long.parseLong(upload) * 1000;
+					lastLag = lag;
+					if (lag > maxLag) maxLag = lag;
+				} catch (NumberFormatException nfe) {
+					// No lag for this one
+				}
+			}
+		}
+
+		// Aim at half a page of new photos per poll
+		if (lastPoll != 0) {
+			double observed = fresh.size() * 1000.0 / Math.max(1, now - lastPoll);
+			rate = rate == 0 ? observed : 0.7 * rate + 0.3 * observed;
+		}
+		lastPoll = now;
+		currentRate = rate;
+		if (!overlap) {
+			interval = minInterval;
+		} else if (rate > 0) {
+			interval = Math.max(minInterval, Math.min(maxInterval, (long) (perPage / 2 * 1000 / rate)));
+		} else {
+			interval = Math.min(interval * 2, maxInterval);
+		}
+	}
+
+	/**
+	 * IDs already delivered.  Recent IDs are kept exactly in a ring; older ones
+	 * in Bloom filters.  An ID above every ID that left the ring can't be in the
+	 * filters, so the new photos, whose IDs grow with time, are never taken for
+	 * false positives.  IDs coming out of order are still checked in the filters.
+	 */
+	static final class SeenFilter {
+		private final long[] ring;
+		private final TreeSet<Long> ringSet;
+		private int next = 0;
+		private int count = 0;
+		// Largest ID that left the ring
+		private long maxEvicted = Long.MIN_VALUE;
+		private final int generationSize;
+		private long[] current;
+		private long[] previous;
+		private int currentCount = 0;
+		private static final int hashes = 7;
+
+		SeenFilter(int ringSize, int generationSize) {
+			this.ring = new long[ringSize];
+			this.ringSet = new TreeSet<Long>();
+			this.generationSize = generationSize;
+			// About 10 bits per ID, under 1% false positives
+			this.current = new long[(generationSize * 10 + 63) / 64];
+			this.previous = new long[current.length];
+		}
+
+		synchronized boolean contains(String id) {
+			long value;
+			try {
+				value = Long.parseLong(id);
+			} catch (NumberFormatException nfe) {
+				value = id.hashCode();
+			}
+			if (ringSet.contains(value)) return true;
+			// Every ID added is in the ring or at most maxEvicted
+			if (value > maxEvicted) return false;
+			return mightContain(current, value) || mightContain(previous, value);
+		}
+
+		// Returns false if already seen
+		synchronized boolean add(String id) {
+			if (contains(id)) return false;
+			long value;
+			try {
+				value = Long.parseLong(id);
+			} catch (NumberFormatException nfe) {
+				value = id.hashCode();
+			}
+			if (count == ring.length) {
+				ringSet.remove(ring[next]);
+				maxEvicted = Math.max(maxEvicted, ring[next]);
+			} else {
+				count++;
+			}
+			ring[next] = value;
+			ringSet.add(value);
+			next = (next + 1) % ring.length;
+
+			if (currentCount == generationSize) {
+				previous = current;
+				current = new long[previous.length];
+				currentCount = 0;
+			}
+			long h = mix(value);
+			int bits = current.length * 64;
+			for (int i = 0; i < hashes; i++) {
+				int bit = (int) (((h >>> 32) + i * (h & 0xFFFFFFFFL)) % bits);
+				current[bit >>> 6] |= 1L << bit;
+			}
+			currentCount++;
+			return true;
+		}
+
+		private static boolean mightContain(long[] filter, long value) {
+			long h = mix(value);
+			int bits = filter.length * 64;
+			for (int i = 0; i < hashes; i++) {
+				int bit = (int) (((h >>> 32) + i * (h & 0xFFFFFFFFL)) % bits);
+				if ((filter[bit >>> 6] & (1L << bit)) == 0) return false;
+			}
+			return true;
+		}
+
+		private static long mix(long value) {
+			long h = value * 0x9E3779B97F4A7C15L;
+			h ^= h >>> 31;
+			h *= 0xBF58476D1CE4E5B9L;
+			return h ^ (h >>> 29);
+		}
+	}
+}
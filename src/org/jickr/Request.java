@@ -13,9 +13,7 @@
 
 package org.jickr;
 
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,8 +29,6 @@ import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 
-import javax.swing.event.EventListenerList;
-
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
@@ -66,24 +62,27 @@ class Request {
 
 	private String base = Flickr.getBase();
 
-	// POST request const
-	private static final String lineEnd = "\r\n";
-	private static final String twoHyphens = "--";
-	private static final String boundary =  "*****";
-
 	/** 
-	 * Listeners
+	 * Upload progress, created when the first listener is added
 	 */
-	private EventListenerList listeners = new EventListenerList();
+	private RequestProgress progress = null;
 
 	// Listener methods for request notifications
-	public void addRequestListener(RequestListener l){ listeners.add(RequestListener.class, l); }	
-	public void removeRequestListener(RequestListener l){ listeners.remove(RequestListener.class, l); }	
-	public void fireRequestProgress(File progressFile, long progress, long totalProgress){
-		RequestListener[] listenerList = (RequestListener[])listeners.getListeners(RequestListener.class);
-		for(RequestListener l : listenerList){
-			l.progressRequest(new RequestEvent(this, progressFile, progress, totalProgress));
-		}
+	public void addRequestListener(RequestListener l){ getProgress().addRequestListener(l); }	
+	public void removeRequestListener(RequestListener l){ if (progress != null) progress.removeRequestListener(l); }	
+
+	/**
+	 * Set the progress used to report and coalesce upload notifications.
+	 * @param progress the progress to update while sending files. May be null.
+	 */
+	void setProgress(RequestProgress progress) {
+		this.progress = progress;
+		if (progress != null) progress.setSource(this);
+	}
+
+	private RequestProgress getProgress() {
+		if (progress == null) setProgress(new RequestProgress());
+		return progress;
 	}
 
 
@@ -136,6 +135,26 @@ class Request {
 		parameters.put(parameter, value);
 	}
 
+	/**
+	 * Get the value of a parameter.
+	 * @return the value, null if unset
+	 */
+	Object getParameter(String parameter) {
+		return parameters.get(parameter);
+	}
+
+	/**
+	 * Copy this request, to send it again with other parameters, such as
+	 * another page, from another thread.  Listeners aren't copied.
+	 * @return a request with the same base, type and parameters
+	 */
+	Request copy() {
+		Request copy = new Request(base);
+		copy.type = type;
+		copy.parameters = new TreeMap<String,Object>(parameters);
+		return copy;
+	}
+
 	/**
 	 * Return a Map of the parameters for this request.  This map is a copy -
 	 * to set parameters, use the setParameter method.
@@ -230,80 +249,6 @@ class Request {
 		return requestParam;
 	}
 
-	/**
-	 * Utility method to send POST params (to upload files by example)
-	 * @param os DataOutputStream got by getConnectionOutputStream() method
-	 * @param key the param name
-	 * @param value the value of param
-	 * @throws FlickrException 
-	 * @throws UnsupportedEncodingException 
-	 * @throws IOException
-	 */
-	private void sendPOSTParams(OutputStream os, String key, Object value) throws FlickrException, UnsupportedEncodingException, IOException{
-
-		DataOutputStream dos = (DataOutputStream) os;
-
-		// Start line 
-		dos.writeBytes(twoHyphens + boundary + lineEnd);
-
-		// String value
-		if (value instanceof String) {
-			dos.writeBytes("Content-Disposition: form-data; name=\""+
-					key+"\""+lineEnd);
-			dos.writeBytes(lineEnd);
-			dos.writeBytes((String) value);
-		}
-
-		// File value
-		else if (value instanceof File){
-
-			// Declaration
-			int bytesRead, bytesAvailable, bufferSize;
-			byte[] buffer;
-			int maxBufferSize = 4*1024;
-
-			File f = (File) value;
-			FileInputStream fileInputStream = new FileInputStream(f);
-
-			dos.writeBytes("Content-Disposition: form-data; name=\""+
-					key+"\";" 
-					+" filename=\""+f.getPath()+"\"" + lineEnd);
-			dos.writeBytes("Content-Type: "+MimeType.getMimeType(f.getPath())+lineEnd);
-			dos.writeBytes(lineEnd);
-
-			// create a buffer of maximum size
-			long bytesReaded=0;
-			long fileSize = f.length();
-			bytesAvailable = fileInputStream.available();
-			bufferSize = Math.min(bytesAvailable, maxBufferSize);
-			buffer = new byte[bufferSize];
-
-			// read file and write it into form...
-			bytesRead = fileInputStream.read(buffer, 0, bufferSize);
-			fireRequestProgress(f, bytesReaded, fileSize);
-
-			while (bytesRead > 0)
-			{
-				dos.write(buffer, 0, bufferSize);
-				bytesAvailable = fileInputStream.available();
-				bufferSize = Math.min(bytesAvailable, maxBufferSize);
-				bytesRead = fileInputStream.read(buffer, 0, bufferSize);
-				bytesReaded += bytesRead;
-				fireRequestProgress(f, bytesReaded, fileSize);
-			}
-
-			// Close the FileInputStream
-			fileInputStream.close();
-			fireRequestProgress(f, fileSize, fileSize);
-
-		} else throw new FlickrException("Param value class type not supported: "+value.getClass().getName());
-
-
-		// Final end line
-		dos.writeBytes(lineEnd);
-
-	}
-
 	private InputStream getConnectionResponse() throws IOException {
 		String urlString = getURL();
 		URL url = new URL(urlString);
@@ -338,15 +283,15 @@ class Request {
 	/**
 	 * Establish POST HTTP connection and return the connection
 	 * @param urlString URL of Flickr services (see Flickr class)
+	 * @param boundary the multipart boundary of the body
 	 * @return the URLConnection ready to stream
 	 * @throws IOException
 	 */
-	private URLConnection getURLConnectionPOST(String urlString) throws IOException, SocketTimeoutException{
+	private URLConnection getURLConnectionPOST(String urlString, String boundary) throws IOException, SocketTimeoutException{
 
 		// Declaration / instantiation
 		URL url = new URL(urlString);
 		HttpURLConnection urlConn;
-		DataOutputStream dos = null;
 
 		// Open New URL connection channel.
 		urlConn = (HttpURLConnection) url.openConnection();
@@ -357,7 +302,7 @@ class Request {
 		urlConn.setUseCaches (false);		  
 		urlConn.setRequestMethod("POST");		 
 		urlConn.setRequestProperty("Connection", "Keep-Alive");		    
-		urlConn.setRequestProperty("Content-Type", "multipart/form-data;boundary="+boundary);
+		urlConn.setRequestProperty("Content-Type", MultipartFormOutputStream.getContentType(boundary));
 		return urlConn;
 	}
 
@@ -375,46 +320,46 @@ class Request {
 		Document doc; 
 		Element root;
 		InputStream in = null;
-		DataOutputStream dos = null;
+		MultipartFormOutputStream mos = null;
 		HttpURLConnection urlConn=null;
+		String boundary = MultipartFormOutputStream.createBoundary();
  
 		try {
 			// Get HTTP connection
-			urlConn = (HttpURLConnection) getURLConnectionPOST(base);
+			urlConn = (HttpURLConnection) getURLConnectionPOST(base, boundary);
 
-			// Generate signature
+			// Generate signature, and wrap plain files into upload sources
 			String paramString = "";
 			for (Map.Entry<String, Object> entry : parameters.entrySet()) {		    	
 				// Prepare signature
 				if (entry.getValue() instanceof String) {
 					paramString += entry.getKey() + entry.getValue();
-				}			
+				} else if (entry.getValue() instanceof File) {
+					entry.setValue(UploadSource.fromFile((File) entry.getValue()));
+				} else if (!(entry.getValue() instanceof UploadSource)) {
+					throw new FlickrException("Param value class type not supported: "+entry.getValue().getClass().getName());
+				}
 			}
 
 			// Signature to parameters
 			parameters.put("api_sig", getSig(paramString));
 
-			// Precompute POST size
-			int sizePOST = precomputePOSTSize(parameters);
-
 			// Fixed POST Size
-			urlConn.setFixedLengthStreamingMode(sizePOST);
-
-			// Instantiate and get the connection DataOutputStream
-			dos = new DataOutputStream( urlConn.getOutputStream() );
+			// Fixed a bug with nginx server 1.2.0 of Flickr whether use setChunkedStreamingMode(int)...
+			urlConn.setFixedLengthStreamingMode(MultipartFormOutputStream.getContentLength(boundary, parameters));
 
 			// Send pairs paramName/value
+			mos = new MultipartFormOutputStream(urlConn.getOutputStream(), boundary);
 			for (Map.Entry<String, Object> entry : parameters.entrySet()) {
-				// Send data
-				sendPOSTParams(dos, entry.getKey(), entry.getValue());			
+				if (entry.getValue() instanceof UploadSource) {
+					mos.writeFile(entry.getKey(), null, (UploadSource) entry.getValue(), progress);
+				} else {
+					mos.writeField(entry.getKey(), (String) entry.getValue());
+				}
 			}		    	
 			
 			// End transmission
-			dos.writeBytes(twoHyphens + boundary + twoHyphens + lineEnd);
-
-			// Close the DataOutputStrem
-			dos.flush();
-			dos.close();
+			mos.close();
 
 			// Get server response
 			if(urlConn.getResponseCode()>400){
@@ -517,38 +462,6 @@ class Request {
 		}
 	}
 
-	/**
-	 * Precompute request POST size for {@link HttpURLConnection#setFixedLengthStreamingMode(int)}
-	 * Fixed a bug with nginx server 1.2.0 of Flickr whether use {@link HttpURLConnection#setChunkedStreamingMode(int)}...
-	 */
-	private int precomputePOSTSize(Map<String, Object> parameters){
-		int size = 0;
-		StringBuilder header = new StringBuilder();
-		for (Map.Entry<String, Object> entry : parameters.entrySet()) {
-			header.append(twoHyphens + boundary + lineEnd); // Start line
-
-			// String param
-			if(entry.getValue() instanceof String){
-				header.append("Content-Disposition: form-data; name=\""+entry.getKey()+"\""+lineEnd);
-				header.append(lineEnd);
-				header.append((String) entry.getValue());
-			} else if (entry.getValue() instanceof File){
-				File f = (File) entry.getValue();
-				header.append("Content-Disposition: form-data; name=\""+entry.getKey()+"\";"+" filename=\""+f.getPath()+"\"" + lineEnd);
-				try {
-					header.append("Content-Type: "+MimeType.getMimeType(f.getPath())+lineEnd);
-				} catch (IOException e) {}
-				header.append(lineEnd);
-				size += f.length();
-			}
-			size += lineEnd.length();
-		}    	
-		size += header.toString().length();
-		String endLine = twoHyphens + boundary + twoHyphens + lineEnd;
-		size += endLine.length();
-		return size;
-	}
-
 	public String toString() {
 		return getURL();
 	}
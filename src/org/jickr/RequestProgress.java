@@ -0,0 +1,180 @@
+package org.jickr;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of an upload request, with coalesced notification of RequestListeners.
+ *
+ * The byte counters are updated for every chunk written and can be read at any
+ * time, from any thread, without locking.  Listeners however are only notified
+ * when at least the configured time has elapsed, or the configured percentage
+ * of the file has been sent, since the previous notification.  The first and
+ * the last notifications of a file are always delivered, the last one with
+ * the exact byte count.
+ *
+ * When an Executor is supplied, listeners run on it instead of the upload
+ * thread.  Every notification reports the counters as they were when it was
+ * posted.  An intermediate notification still waiting to run is replaced by
+ * the next one, so a slow listener skips intermediate values instead of
+ * stalling the upload; the first and the last notifications of each file are
+ * never replaced.
+ *
+ * Example of use:
+ * 	 RequestProgress progress = new RequestProgress(500, 5, executor);
+ * 	 progress.addRequestListener(listener);
+ * 	 Photo.uploadNewPhoto(upload, progress);
+ */
+public class RequestProgress {
+
+	private final long minIntervalNanos;
+	private final int percentStep;
+	private final Executor executor;
+	private final CopyOnWriteArrayList<RequestListener> listeners = new CopyOnWriteArrayList<RequestListener>();
+
+	private volatile Object source = this;
+	private volatile File file;
+	private volatile long totalProgress;
+	private final AtomicLong progress = new AtomicLong();
+
+	// Counters at the last notification, used to coalesce updates
+	private final AtomicLong lastFiredNanos = new AtomicLong();
+	private final AtomicLong lastFiredBytes = new AtomicLong();
+
+	// Notifications waiting for the executor, all guarded by queued
+	private final ArrayDeque<RequestEvent> queued = new ArrayDeque<RequestEvent>();
+	private boolean lastReplaceable = false;
+	private boolean draining = false;
+
+	/**
+	 * Creates a progress notifying synchronously at most every 250 ms or 1% of the file.
+	 */
+	public RequestProgress() {
+		this(250, 1, null);
+	}
+
+	/**
+	 * Creates a progress with a custom notification policy.
+	 *
+	 * @param minIntervalMillis minimal delay between two notifications, 0 to disable
+	 * @param percentStep notify when this percentage of the file was sent since the previous notification, 0 to disable
+	 * @param executor executor running the listeners, or null to run them on the upload thread
+	 */
+	public RequestProgress(long minIntervalMillis, int percentStep, Executor executor) {
+		if (minIntervalMillis < 0) throw new IllegalArgumentException("minIntervalMillis cannot be negative");
+		if (percentStep < 0 || percentStep > 100) throw new IllegalArgumentException("percentStep must be between 0 and 100");
+		this.minIntervalNanos = minIntervalMillis * 1000000L;
+		this.percentStep = percentStep;
+		this.executor = executor;
+	}
+
+	public void addRequestListener(RequestListener l) { listeners.add(l); }
+	public void removeRequestListener(RequestListener l) { listeners.remove(l); }
+
+	/**
+	 * Get the number of bytes of the current file sent so far.
+	 * @return exact count of bytes sent
+	 */
+	public long getProgress() {
+		return progress.get();
+	}
+
+	/**
+	 * Get the size of the current file.
+	 * @return total number of bytes to send
+	 */
+	public long getTotalProgress() {
+		return totalProgress;
+	}
+
+	/**
+	 * Get the file being sent.
+	 * @return the current file, null if none or if the upload is not backed by a file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	void setSource(Object source) {
+		this.source = source;
+	}
+
+	/**
+	 * Start reporting a new file.  Always notifies.
+	 */
+	void start(File file, long totalProgress) {
+		this.file = file;
+		this.totalProgress = totalProgress;
+		progress.set(0);
+		lastFiredBytes.set(0);
+		lastFiredNanos.set(System.nanoTime());
+		fire(false);
+	}
+
+	/**
+	 * Account for bytes written, and notify if the policy allows it.
+	 */
+	void advance(long bytes) {
+		long current = progress.addAndGet(bytes);
+		long now = System.nanoTime();
+		long lastNanos = lastFiredNanos.get();
+		boolean due = minIntervalNanos > 0 && now - lastNanos >= minIntervalNanos;
+		if (!due && percentStep > 0 && totalProgress > 0)
+			due = (current - lastFiredBytes.get()) * 100 >= percentStep * totalProgress;
+		// Only the thread winning the race notifies
+		if (due && lastFiredNanos.compareAndSet(lastNanos, now)) {
+			lastFiredBytes.set(current);
+			fire(true);
+		}
+	}
+
+	/**
+	 * The file has been entirely sent.  Always notifies, with the exact count.
+	 */
+	void finish() {
+		lastFiredBytes.set(progress.get());
+		lastFiredNanos.set(System.nanoTime());
+		fire(false);
+	}
+
+	// Notify with the counters as they are now
+	private void fire(boolean replaceable) {
+		if (listeners.isEmpty()) return;
+		RequestEvent event = new RequestEvent(source, file, progress.get(), totalProgress);
+		if (executor == null) {
+			deliver(event);
+			return;
+		}
+		synchronized (queued) {
+			if (replaceable && lastReplaceable && !queued.isEmpty()) queued.pollLast();
+			queued.add(event);
+			lastReplaceable = replaceable;
+			if (draining) return;
+			draining = true;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				while (true) {
+					RequestEvent next;
+					synchronized (queued) {
+						next = queued.poll();
+						if (next == null) {
+							draining = false;
+							return;
+						}
+					}
+					deliver(next);
+				}
+			}
+		});
+	}
+
+	private void deliver(RequestEvent event) {
+		for (RequestListener l : listeners) {
+			l.progressRequest(event);
+		}
+	}
+}
@@ -0,0 +1,312 @@
+package org.jickr;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jdom.Element;
+
+/**
+ * Cache of the pages of flickr.photos.search results.
+ *
+ * Queries are normalized before lookup: tags are trimmed, lower cased, sorted
+ * and deduplicated, the text is trimmed, lower cased and its whitespace
+ * collapsed, and the default tag mode is made explicit.  So
+ * <code>findByTags("a,b")</code>, <code>findByTags("B, a")</code> and the
+ * equivalent PhotoSearch share their cached pages, and so do a PhotoList and
+ * a compact list of the same search.  Results depend on the authenticated
+ * user, who is part of the key.
+ *
+ * Pages are stored by their position in the results, not by page number, so
+ * overlapping queries share them: a page of any size is served from the cached
+ * pages of the same query covering its photos, for instance page 3 of 100
+ * photos from page 1 of 500, as long as they agree on the total number of
+ * results.  Pages shorter than their page size, which Flickr sends when it
+ * filters out some results, only serve the same page again.
+ *
+ * Pages are stored as compact ID lists, and expire after the time to live.
+ * The least recently used pages are dropped beyond the maximum number of
+ * pages.  Searches asking for extras are never cached.
+ *
+ * Example of use:
+ * 	 Photo.setSearchCache(new SearchCache(10 * 60 * 1000L, 10000));
+ *
+ * @see org.jickr.Photo#setSearchCache(SearchCache)
+ */
+public class SearchCache {
+
+	// A page of results
+	static final class Page {
+		final int pages;
+		final CompactPhotoList photos;
+		final long expires;
+
+		Page(int pages, CompactPhotoList photos, long expires) {
+			this.pages = pages;
+			this.photos = photos;
+			this.expires = expires;
+		}
+	}
+
+	// A cached page, by its position in the results
+	private static final class Chunk {
+		final String query;
+		final int offset;
+		final int length;
+		final int total;
+		final CompactPhotoList photos;
+		final long expires;
+
+		Chunk(String query, int offset, int length, int total, CompactPhotoList photos, long expires) {
+			this.query = query;
+			this.offset = offset;
+			this.length = length;
+			this.total = total;
+			this.photos = photos;
+			this.expires = expires;
+		}
+	}
+
+	// Parameters that don't change the results
+	private static final List<String> ignored = Arrays.asList("api_key", "api_sig", "page", "per_page");
+	// Flickr's default page size
+	private static final int defaultPerPage = 100;
+
+	private final long ttl;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	// All guarded by chunks
+	// Chunks of each query, by offset
+	private final HashMap<String,TreeMap<Integer,Chunk>> queries = new HashMap<String,TreeMap<Integer,Chunk>>();
+	// By query and offset, access ordered
+	private final LinkedHashMap<String,Chunk> chunks;
+
+	/**
+	 * Creates a cache.
+	 * @param ttlMillis time to live of a page
+	 * @param maxPages maximum number of pages kept
+	 */
+	public SearchCache(long ttlMillis, final int maxPages) {
+		if (ttlMillis <= 0) throw new IllegalArgumentException("ttlMillis must be positive");
+		if (maxPages <= 0) throw new IllegalArgumentException("maxPages must be positive");
+		this.ttl = ttlMillis;
+		this.chunks = new LinkedHashMap<String,Chunk>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String,Chunk> eldest) {
+				if (size() <= maxPages) return false;
+				unlink(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Drop every cached page.
+	 */
+	public void clear() {
+		synchronized (chunks) {
+			chunks.clear();
+			queries.clear();
+		}
+	}
+
+	/**
+	 * Drop the expired pages.  They are otherwise dropped when looked up, or
+	 * when the cache is full.
+	 */
+	public void purge() {
+		long now = System.currentTimeMillis();
+		synchronized (chunks) {
+			for (Iterator<Chunk> it = chunks.values().iterator(); it.hasNext();) {
+				Chunk chunk = it.next();
+				if (chunk.expires <= now) {
+					unlink(chunk);
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the number of cached pages.
+	 */
+	public int size() {
+		synchronized (chunks) {
+			return chunks.size();
+		}
+	}
+
+	/**
+	 * Get the number of pages served from the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of pages fetched from Flickr because they weren't cached.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get a page from the cached pages covering its photos.
+	 * @param key normalized query, from <code>key(Request)</code>
+	 * @param page page number
+	 * @param perPage page size
+	 * @return the page, null if its photos aren't all cached
+	 */
+	Page get(String key, int page, int perPage) {
+		Page found;
+		synchronized (chunks) {
+			found = assemble(key, page, perPage);
+		}
+		if (found == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return found;
+	}
+
+	/**
+	 * Store a page fetched from Flickr.
+	 * @param total total number of results of the query, as sent with the page
+	 */
+	void put(String key, int page, int perPage, int total, List<Element> photos) {
+		CompactPhotoList compact = new CompactPhotoList(photos.size());
+		for (Element photo : photos) {
+			compact.add(photo);
+		}
+		compact.trimToSize();
+		int offset = (page - 1) * perPage;
+		Chunk chunk = new Chunk(key, offset, perPage, total, compact, System.currentTimeMillis() + ttl);
+		synchronized (chunks) {
+			Chunk old = chunks.put(key+"#"+offset, chunk);
+			if (old != null) unlink(old);
+			TreeMap<Integer,Chunk> offsets = queries.get(key);
+			if (offsets == null) {
+				offsets = new TreeMap<Integer,Chunk>();
+				queries.put(key, offsets);
+			}
+			offsets.put(offset, chunk);
+		}
+	}
+
+	/**
+	 * Rebuild the photo elements of a cached page.
+	 */
+	static void addElements(Page cached, List<Element> photos) {
+		for (int i = 0; i < cached.photos.size(); i++) {
+			photos.add(cached.photos.toElement(i));
+		}
+	}
+
+	/**
+	 * Get the page size of a search request.
+	 */
+	static int perPage(Request req) {
+		Object perPage = req.getParameter("per_page");
+		return perPage == null ? defaultPerPage : Integer.parseInt(perPage.toString());
+	}
+
+	// Guarded by chunks.  Null unless every photo of the page is cached, by
+	// unexpired chunks agreeing on the total.
+	private Page assemble(String key, int page, int perPage) {
+		TreeMap<Integer,Chunk> offsets = queries.get(key);
+		if (offsets == null) return null;
+		long now = System.currentTimeMillis();
+		int start = (page - 1) * perPage;
+		int end = start + perPage;
+		int total = -1;
+		long expires = Long.MAX_VALUE;
+		CompactPhotoList photos = new CompactPhotoList(perPage);
+		int position = start;
+		while (total < 0 || position < end) {
+			Map.Entry<Integer,Chunk> entry = offsets.floorEntry(position);
+			// Any chunk tells the total, even one before the page
+			if (entry == null) entry = offsets.ceilingEntry(position);
+			if (entry == null) return null;
+			Chunk chunk = entry.getValue();
+			if (chunk.expires <= now || (total >= 0 && chunk.total != total)) return null;
+			if (total < 0) {
+				total = chunk.total;
+				end = Math.min(end, total);
+			}
+			if (position >= end) break;
+			// Flickr sometimes sends short pages, after filtering them: the
+			// positions of their photos are only known for the same page
+			if (chunk.photos.size() < chunk.length && chunk.offset + chunk.photos.size() < chunk.total) {
+				if (chunk.offset != start || chunk.length != perPage) return null;
+				end = start + chunk.photos.size();
+			}
+			int from = position - chunk.offset;
+			if (from < 0 || from >= chunk.photos.size()) return null;
+			int to = Math.min(chunk.photos.size(), end - chunk.offset);
+			for (int i = from; i < to; i++) {
+				photos.add(chunk.photos, i);
+			}
+			position = chunk.offset + to;
+			expires = Math.min(expires, chunk.expires);
+			// Mark as recently used
+			chunks.get(key+"#"+chunk.offset);
+		}
+		photos.trimToSize();
+		return new Page((total + perPage - 1) / perPage, photos, expires);
+	}
+
+	// Guarded by chunks
+	private void unlink(Chunk chunk) {
+		TreeMap<Integer,Chunk> offsets = queries.get(chunk.query);
+		if (offsets == null || offsets.get(chunk.offset) != chunk) return;
+		offsets.remove(chunk.offset);
+		if (offsets.isEmpty()) queries.remove(chunk.query);
+	}
+
+	/**
+	 * Normalized form of a search request.
+	 * @return the key, null if the request can't be cached
+	 */
+	static String key(Request req) {
+		Map<String,Object> params = req.getParameters();
+		if (!"flickr.photos.search".equals(params.get("method"))) return null;
+		// Extras aren't kept by the compact pages
+		if (params.containsKey("extras")) return null;
+		for (String param : ignored) {
+			params.remove(param);
+		}
+
+		Object tags = params.get("tags");
+		if (tags != null) {
+			TreeSet<String> sorted = new TreeSet<String>();
+			for (String tag : tags.toString().split(",")) {
+				String normalized = tag.trim().toLowerCase();
+				if (normalized.length() > 0) sorted.add(normalized);
+			}
+			StringBuilder joined = new StringBuilder();
+			for (String tag : sorted) {
+				if (joined.length() > 0) joined.append(',');
+				joined.append(tag);
+			}
+			params.put("tags", joined.toString());
+			// The mode doesn't matter for a single tag, and defaults to any
+			if (sorted.size() <= 1 || !params.containsKey("tag_mode")) params.put("tag_mode", "any");
+		}
+		Object text = params.get("text");
+		if (text != null) {
+			params.put("text", text.toString().trim().replaceAll("\\s+", " ").toLowerCase());
+		}
+		StringBuilder key = new StringBuilder();
+		for (Map.Entry<String,Object> param : params.entrySet()) {
+			key.append(param.getKey()).append('=').append(param.getValue()).append('&');
+		}
+		return key.toString();
+	}
+}
@@ -0,0 +1,287 @@
+package org.jickr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import org.jdom.Element;
+
+/**
+ * Runs a search over date windows, to get all of its results.
+ *
+ * Flickr returns at most a few thousand results for a single search, however
+ * many photos match.  A sharded search splits the period to search into upload
+ * or taken date windows, and splits again every window whose search has more
+ * results than the ceiling, until each window can be listed entirely.  The
+ * windows are searched in parallel, and the results come back in a single
+ * list, most recent window first.  A photo is only returned once, even when
+ * it moves between pages or windows while the search runs.
+ *
+ * Searches on the taken date also cover the photos without a date in the
+ * searched period: one window before 1800 and one after now are searched
+ * without a lower or an upper bound, for scans of old prints and wrong camera
+ * clocks.
+ *
+ * The list is a compact one: large users and tags can be enumerated without
+ * holding a Photo object per result.
+ *
+ * Example of use:
+ * 	 PhotoSearch search = new PhotoSearch();
+ * 	 search.setTags("sunset");
+ * 	 ShardedSearch sharded = new ShardedSearch(8, new RateLimiter(3));
+ * 	 List&lt;Photo&gt; all = sharded.search(search, ShardedSearch.DateField.UPLOADED);
+ */
+public class ShardedSearch {
+
+	/**
+	 * Date used to split the search.
+	 */
+	public enum DateField {
+		/**
+		 * Split on the upload date.
+		 */
+		UPLOADED,
+		/**
+		 * Split on the date the photo was taken.
+		 */
+		TAKEN
+	}
+
+	// Results per page, and pages Flickr returns for a single search
+	private static final int perPage = 500;
+	private static final int defaultMaxPages = 8;
+	// Nothing was uploaded to Flickr before
+	private static final long flickrLaunch = utc(2004, Calendar.FEBRUARY, 1);
+	// Lower bound of the bounded windows of taken dates; older ones are searched without bound
+	private static final long takenStart = utc(1800, Calendar.JANUARY, 1);
+	// Bound of a window searched without lower or upper bound
+	private static final long open = Long.MIN_VALUE;
+
+	private final int parallelism;
+	private final RateLimiter limiter;
+	private final int maxPages;
+
+	// A window of the search, bounds inclusive, in whole seconds, or open
+	private static final class Window {
+		final long from;
+		final long to;
+		int pages;
+		// One compact list per page
+		final List<CompactPhotoList> results = new ArrayList<CompactPhotoList>();
+
+		Window(long from, long to) {
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/**
+	 * Creates a sharded search with the usual Flickr ceiling of 4000 results.
+	 * @param parallelism maximum number of concurrent calls to Flickr
+	 * @param limiter rate limiter shared with other callers, may be null
+	 */
+	public ShardedSearch(int parallelism, RateLimiter limiter) {
+		this(parallelism, limiter, defaultMaxPages * perPage);
+	}
+
+	/**
+	 * Creates a sharded search.
+	 * @param parallelism maximum number of concurrent calls to Flickr
+	 * @param limiter rate limiter shared with other callers, may be null
+	 * @param ceiling maximum number of results Flickr returns for a single search
+	 */
+	public ShardedSearch(int parallelism, RateLimiter limiter, int ceiling) {
+		if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be positive");
+		if (ceiling < perPage) throw new IllegalArgumentException("ceiling must be at least "+perPage);
+		this.parallelism = parallelism;
+		this.limiter = limiter;
+		this.maxPages = ceiling / perPage;
+	}
+
+	/**
+	 * Get every result of a search.  The period searched is the one of the
+	 * date bounds of the search.  Without them, uploads are searched from the
+	 * launch of Flickr until now, and taken dates without any bound.
+	 *
+	 * @param search the search terms
+	 * @param field the date to split on
+	 * @return the results, without duplicates
+	 * @throws FlickrException on any error
+	 */
+	public List<Photo> search(PhotoSearch search, final DateField field) throws FlickrException {
+		if (search == null) throw new FlickrRuntimeException("Search term cannot be null");
+		if (field == null) throw new NullPointerException("field cannot be null");
+		Date min = field == DateField.UPLOADED ? search.getMinUploadDate() : search.getMinTakenDate();
+		Date max = field == DateField.UPLOADED ? search.getMaxUploadDate() : search.getMaxTakenDate();
+		boolean taken = field == DateField.TAKEN;
+		long from = (min != null ? min.getTime() : taken ? takenStart : flickrLaunch) / 1000;
+		long to = (max != null ? max.getTime() : System.currentTimeMillis()) / 1000;
+		if (from > to) return new CompactPhotoList(0);
+		final PhotoSearch terms = search.copy();
+
+		List<Window> done = new ArrayList<Window>();
+		List<Window> pending = new ArrayList<Window>();
+		pending.add(new Window(from, to));
+		if (taken && max == null) pending.add(new Window(to + 1, open));
+		if (taken && min == null) pending.add(new Window(open, from - 1));
+		while (!pending.isEmpty()) {
+			// First page of every window, to learn its size
+			List<Callable<Void>> probes = new ArrayList<Callable<Void>>();
+			for (final Window window : pending) {
+				probes.add(new Callable<Void>() {
+					public Void call() throws FlickrException {
+						List<Element> photos = new ArrayList<Element>();
+						window.pages = PhotoList.fetchPage(request(terms, field, window), 1, photos);
+						window.results.add(compact(photos));
+						return null;
+					}
+				});
+			}
+			Parallel.invokeAll(probes, parallelism, limiter);
+
+			List<Window> split = new ArrayList<Window>();
+			List<Callable<CompactPhotoList>> fetches = new ArrayList<Callable<CompactPhotoList>>();
+			final List<Window> fetched = new ArrayList<Window>();
+			for (final Window window : pending) {
+				if (window.pages > maxPages && window.from != open && window.to != open && window.to > window.from) {
+					// Too many results: split in two
+					long middle = window.from + (window.to - window.from) / 2;
+					split.add(new Window(window.from, middle));
+					split.add(new Window(middle + 1, window.to));
+					continue;
+				}
+				if (window.pages > maxPages) {
+					Logger.global.warning("More than "+(maxPages * perPage)+" results in "
+							+(window.from == open || window.to == open ? "an open window" : "a single second")+", some are missing");
+				}
+				done.add(window);
+				for (int page = 2; page <= Math.min(window.pages, maxPages); page++) {
+					final int p = page;
+					fetched.add(window);
+					fetches.add(new Callable<CompactPhotoList>() {
+						public CompactPhotoList call() throws FlickrException {
+							List<Element> photos = new ArrayList<Element>();
+							PhotoList.fetchPage(request(terms, field, window), p, photos);
+							return compact(photos);
+						}
+					});
+				}
+			}
+			List<CompactPhotoList> pages = Parallel.invokeAll(fetches, parallelism, limiter);
+			for (int i = 0; i < pages.size(); i++) {
+				fetched.get(i).results.add(pages.get(i));
+			}
+			pending = split;
+		}
+
+		// Most recent window first, each photo once.  Windows don't overlap, so
+		// the upper bounds sort them, the open ended one first.
+		Collections.sort(done, new Comparator<Window>() {
+			public int compare(Window a, Window b) {
+				long ta = a.to == open ? Long.MAX_VALUE : a.to;
+				long tb = b.to == open ? Long.MAX_VALUE : b.to;
+				return ta < tb ? 1 : ta > tb ? -1 : 0;
+			}
+		});
+		CompactPhotoList list = new CompactPhotoList(1024);
+		LongSet seen = new LongSet();
+		// IDs that aren't numbers, if Flickr ever sends some
+		Set<String> seenOthers = new HashSet<String>();
+		for (Window window : done) {
+			for (CompactPhotoList page : window.results) {
+				for (int i = 0; i < page.size(); i++) {
+					long id = page.getNumericID(i);
+					if (id >= 0 ? seen.add(id) : seenOthers.add(page.getID(i))) list.add(page, i);
+				}
+			}
+		}
+		list.trimToSize();
+		return list;
+	}
+
+	// Set of non negative longs, in a single open addressing array
+	private static final class LongSet {
+		private static final long free = -1;
+		private long[] table = newTable(1024);
+		private int size = 0;
+
+		boolean add(long value) {
+			if ((size + 1) * 2 > table.length) grow();
+			if (!insert(table, value)) return false;
+			size++;
+			return true;
+		}
+
+		private static boolean insert(long[] table, long value) {
+			int mask = table.length - 1;
+			for (int i = hash(value) & mask; ; i = (i + 1) & mask) {
+				if (table[i] == value) return false;
+				if (table[i] == free) {
+					table[i] = value;
+					return true;
+				}
+			}
+		}
+
+		private void grow() {
+			long[] grown = newTable(table.length * 2);
+			for (long value : table) {
+				if (value != free) insert(grown, value);
+			}
+			table = grown;
+		}
+
+		private static long[] newTable(int length) {
+			long[] table = new long[length];
+			Arrays.fill(table, free);
+			return table;
+		}
+
+		private static int hash(long value) {
+			long h = value * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+
+	private static long utc(int year, int month, int day) {
+		Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+		cal.clear();
+		cal.set(year, month, day);
+		return cal.getTimeInMillis();
+	}
+
+	// Pages are kept compact until merged, not as XML
+	private static CompactPhotoList compact(List<Element> photos) {
+		CompactPhotoList page = new CompactPhotoList(photos.size());
+		for (Element photo : photos) {
+			page.add(photo);
+		}
+		return page;
+	}
+
+	// The search request, restricted to a window
+	private static Request request(PhotoSearch terms, DateField field, Window window) throws FlickrException {
+		PhotoSearch search = terms.copy();
+		Date from = window.from == open ? null : new Date(window.from * 1000);
+		Date to = window.to == open ? null : new Date(window.to * 1000);
+		if (field == DateField.UPLOADED) {
+			search.setMinUploadDate(from);
+			search.setMaxUploadDate(to);
+		} else {
+			search.setMinTakenDate(from);
+			search.setMaxTakenDate(to);
+		}
+		Request req = Photo.searchRequest(search);
+		req.setParameter("per_page",Integer.toString(perPage));
+		return req;
+	}
+}
@@ -1,25 +1,6 @@
 package org.jickr;
 
-enum TicketCompleteStatus{
-	NOT_COMPLETED(0),
-	COMPLETED(1),
-	COMPLETED_WITH_ERROR(2);
-	
-	private int value;
-	
-	private TicketCompleteStatus(int value) {
-		this.value = value;
-	}
-	
-	public static TicketCompleteStatus valueOf(int value) throws FlickrException{
-		switch(value){
-		case 0 : return TicketCompleteStatus.NOT_COMPLETED;
-		case 1 : return TicketCompleteStatus.COMPLETED;
-		case 2 : return TicketCompleteStatus.COMPLETED_WITH_ERROR;
-		default : throw new FlickrException("TicketCompleteStatus value must be between 0 and 2");
-		}
-	}
-}
+import org.jdom.Element;
 
 public class Ticket {
 	
@@ -38,6 +19,38 @@ public class Ticket {
 		this.imported = imported;
 	}
 	
+	/**
+	 * Creates a Ticket from a &lt;ticket&gt; element returned by
+	 * flickr.photos.upload.checkTickets.  Invalid tickets carry no complete attribute.
+	 * 
+	 * @param ticket the ticket element
+	 * @throws FlickrException if the element is malformed
+	 */
+	Ticket(Element ticket) throws FlickrException {
+		if (ticket == null) throw new FlickrRuntimeException("Can't construct Ticket from null");
+		this.ticketid = ticket.getAttributeValue("id");
+		this.invalid = "1".equals(ticket.getAttributeValue("invalid"));
+		this.photoid = ticket.getAttributeValue("photoid");
+		this.imported = ticket.getAttributeValue("imported");
+		String complete = ticket.getAttributeValue("complete");
+		try {
+			this.completedStatus = complete == null ? TicketCompleteStatus.NOT_COMPLETED
+					: TicketCompleteStatus.valueOf(Integer.parseInt(complete));
+		} catch (NumberFormatException nfe) {
+			throw new FlickrException("Malformed ticket complete value: "+complete, nfe);
+		}
+	}
+	
+	/**
+	 * A ticket is resolved once Flickr has finished with it, either successfully,
+	 * with an error, or because the ticket is unknown.
+	 * 
+	 * @return true if the ticket will not change anymore
+	 */
+	public boolean isResolved() {
+		return (invalid != null && invalid) || completedStatus != TicketCompleteStatus.NOT_COMPLETED;
+	}
+	
 	public String getTicketid() {
 		return ticketid;
 	}
@@ -0,0 +1,22 @@
+package org.jickr;
+
+enum TicketCompleteStatus{
+	NOT_COMPLETED(0),
+	COMPLETED(1),
+	COMPLETED_WITH_ERROR(2);
+	
+	private int value;
+	
+	private TicketCompleteStatus(int value) {
+		this.value = value;
+	}
+	
+	public static TicketCompleteStatus valueOf(int value) throws FlickrException{
+		switch(value){
+		case 0 : return TicketCompleteStatus.NOT_COMPLETED;
+		case 1 : return TicketCompleteStatus.COMPLETED;
+		case 2 : return TicketCompleteStatus.COMPLETED_WITH_ERROR;
+		default : throw new FlickrException("TicketCompleteStatus value must be between 0 and 2");
+		}
+	}
+}
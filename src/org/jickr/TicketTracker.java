@@ -0,0 +1,203 @@
+package org.jickr;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Tracks asynchronous upload tickets and completes a future for each one when
+ * Flickr has processed the upload.
+ *
+ * Pending tickets are gathered into comma separated flickr.photos.upload.checkTickets
+ * calls, so hundreds of outstanding uploads cost a handful of requests per poll.
+ * The poll interval starts at the minimum, doubles every time a poll resolves
+ * nothing, and drops back to the minimum as soon as tickets start resolving.
+ *
+ * Example of use:
+ * 	 TicketTracker tracker = new TicketTracker();
+ * 	 CompletableFuture&lt;Ticket&gt; done = tracker.upload(
+ * 		new PhotoUpload.Builder(file).async(true).build());
+ * 	 String photoId = done.get().getPhotoid();
+ *
+ * @see org.jickr.Photo#checkTickets(java.util.Collection)
+ */
+public class TicketTracker {
+
+	// Keep the tickets parameter of a single call to a reasonable length
+	private static final int maxTicketsPerCall = 100;
+
+	private final User user;
+	private final long minInterval;
+	private final long maxInterval;
+	private final ConcurrentHashMap<String, CompletableFuture<Ticket>> pending =
+			new ConcurrentHashMap<String, CompletableFuture<Ticket>>();
+	private final ScheduledExecutorService scheduler;
+
+	// Guarded by this
+	private long interval;
+	private boolean scheduled = false;
+	private boolean shutdown = false;
+
+	/**
+	 * Creates a tracker polling on behalf of the user in the current AuthContext,
+	 * between every second and every 30 seconds.
+	 */
+	public TicketTracker() {
+		this(Auth.getAuthContext(), 1000, 30000);
+	}
+
+	/**
+	 * Creates a tracker.
+	 *
+	 * @param user user who owns the tickets (the AuthContext of the polling thread). May be null.
+	 * @param minIntervalMillis shortest delay between two polls
+	 * @param maxIntervalMillis longest delay between two polls, reached when nothing resolves
+	 */
+	public TicketTracker(User user, long minIntervalMillis, long maxIntervalMillis) {
+		if (minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis)
+			throw new IllegalArgumentException("Invalid poll intervals");
+		this.user = user;
+		this.minInterval = minIntervalMillis;
+		this.maxInterval = maxIntervalMillis;
+		this.interval = minIntervalMillis;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jickr-ticket-tracker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Upload a photo and track its ticket if the upload is asynchronous.  A
+	 * synchronous upload returns an already completed future.
+	 *
+	 * @param photoUpload the photo to upload
+	 * @return a future completed with the resolved ticket
+	 * @throws FlickrException if the upload itself fails
+	 */
+	public CompletableFuture<Ticket> upload(PhotoUpload photoUpload) throws FlickrException {
+		String id = Photo.uploadNewPhoto(photoUpload);
+		if (photoUpload.isAsync() == null || !photoUpload.isAsync())
+			return CompletableFuture.completedFuture(
+					new Ticket(null, TicketCompleteStatus.COMPLETED, false, id, null));
+		return track(id);
+	}
+
+	/**
+	 * Start tracking a ticket.  Tracking the same ticket twice returns the same future.
+	 *
+	 * @param ticketid ticket id returned by an async upload
+	 * @return a future completed with the ticket once COMPLETED, or completed
+	 * exceptionally with a FlickrException if the upload failed or the ticket is invalid
+	 */
+	public CompletableFuture<Ticket> track(String ticketid) {
+		if (ticketid == null) throw new NullPointerException("ticketid cannot be null");
+		CompletableFuture<Ticket> future = new CompletableFuture<Ticket>();
+		CompletableFuture<Ticket> existing = pending.putIfAbsent(ticketid, future);
+		if (existing != null) return existing;
+		synchronized (this) {
+			if (shutdown) {
+				pending.remove(ticketid);
+				future.completeExceptionally(new FlickrException("TicketTracker is shut down"));
+				return future;
+			}
+			// New tickets reset the back off for the following polls
+			interval = minInterval;
+			if (!scheduled) {
+				scheduled = true;
+				scheduler.schedule(new Runnable() {
+					public void run() {
+						poll();
+					}
+				}, interval, TimeUnit.MILLISECONDS);
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Get the number of tickets not resolved yet.
+	 * @return count of pending tickets
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Stop polling.  Pending futures are completed exceptionally.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			shutdown = true;
+		}
+		scheduler.shutdownNow();
+		for (Iterator<CompletableFuture<Ticket>> it = pending.values().iterator(); it.hasNext();) {
+			it.next().completeExceptionally(new FlickrException("TicketTracker is shut down"));
+			it.remove();
+		}
+	}
+
+	private void poll() {
+		boolean resolved = false;
+		if (user != null) Auth.setAuthContext(user);
+		try {
+			List<String> batch = new ArrayList<String>(maxTicketsPerCall);
+			for (String ticketid : pending.keySet()) {
+				batch.add(ticketid);
+				if (batch.size() == maxTicketsPerCall) {
+					resolved |= checkBatch(batch);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) resolved |= checkBatch(batch);
+		} catch (FlickrException ex) {
+			// Keep the tickets, we'll try again after backing off
+			Logger.global.warning("Error checking upload tickets: "+ex.getMessage());
+		} finally {
+			if (user != null) Auth.resetAuthContext();
+		}
+
+		synchronized (this) {
+			if (shutdown) return;
+			interval = resolved ? minInterval : Math.min(interval * 2, maxInterval);
+			if (pending.isEmpty()) {
+				scheduled = false;
+				interval = minInterval;
+			} else {
+				scheduler.schedule(new Runnable() {
+					public void run() {
+						poll();
+					}
+				}, interval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	// Check one batch of tickets, return true if any of them got resolved
+	private boolean checkBatch(List<String> batch) throws FlickrException {
+		boolean resolved = false;
+		for (Ticket ticket : Photo.checkTickets(batch)) {
+			if (!ticket.isResolved()) continue;
+			CompletableFuture<Ticket> future = pending.remove(ticket.getTicketid());
+			if (future == null) continue;
+			resolved = true;
+			if (ticket.getInvalid() != null && ticket.getInvalid()) {
+				future.completeExceptionally(new FlickrException("Invalid upload ticket: "+ticket.getTicketid()));
+			} else if (ticket.getCompletedStatus() == TicketCompleteStatus.COMPLETED_WITH_ERROR) {
+				future.completeExceptionally(new FlickrException("Upload failed for ticket: "+ticket.getTicketid()));
+			} else {
+				future.complete(ticket);
+			}
+		}
+		return resolved;
+	}
+}
@@ -0,0 +1,275 @@
+package org.jickr;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * Schedules photo uploads against the quotas returned by flickr.people.getUploadStatus.
+ *
+ * The scheduler keeps a local model of the remaining bandwidth: it is read from
+ * UserLimitations, decremented by every upload, and refreshed periodically.
+ * Files bigger than the maximum photo or video size are rejected on submission,
+ * before any byte is sent.  Pending uploads are ordered to fit the remaining
+ * bandwidth (largest upload that still fits first), and when nothing fits
+ * anymore the scheduler pauses until a refresh shows more bandwidth.
+ *
+ * Uploads run one at a time on a background thread, under the AuthContext of
+ * the user given at construction.
+ *
+ * Example of use:
+ * 	 UploadScheduler scheduler = new UploadScheduler();
+ * 	 Future&lt;String&gt; id = scheduler.submit(new PhotoUpload.Builder(file).build());
+ *
+ * @see org.jickr.UserLimitations
+ */
+public class UploadScheduler {
+
+	private final User user;
+	private final UserLimitations limits;
+	private final long refreshInterval;
+	private final Thread worker;
+	// Serializes the calls to Flickr refreshing limits
+	private final Object refreshLock = new Object();
+
+	// Quota model and queue, guarded by this
+	private final List<Job> queue = new ArrayList<Job>();
+	private boolean loaded = false;
+	private boolean unlimited;
+	private long remainingBytes;
+	private long inFlightBytes = 0;
+	private long bandwidthMaxBytes;
+	private long filesizeMaxBytes;
+	private long videosizeMaxBytes;
+	private long lastRefresh = 0;
+	private boolean started = false;
+	private boolean paused = false;
+	private boolean shutdown = false;
+
+	private static class Job {
+		final PhotoUpload upload;
+		final long size;
+		final CompletableFuture<String> future = new CompletableFuture<String>();
+
+		Job(PhotoUpload upload, long size) {
+			this.upload = upload;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Creates a scheduler uploading as the user in the current AuthContext,
+	 * refreshing the quotas every 15 minutes.
+	 */
+	public UploadScheduler() {
+		this(Auth.getAuthContext(), 15 * 60 * 1000L);
+	}
+
+	/**
+	 * Creates a scheduler.
+	 *
+	 * @param user the user to upload as. Must be authenticated with WRITE permission.
+	 * @param refreshIntervalMillis delay between two refreshes of the quotas from Flickr
+	 */
+	public UploadScheduler(User user, long refreshIntervalMillis) {
+		if (refreshIntervalMillis <= 0) throw new IllegalArgumentException("refreshIntervalMillis must be positive");
+		this.user = user;
+		this.refreshInterval = refreshIntervalMillis;
+		this.limits = new UserLimitations();
+		this.worker = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, "jickr-upload-scheduler");
+		this.worker.setDaemon(true);
+	}
+
+	/**
+	 * Queue a photo for upload.
+	 *
+	 * @param photoUpload the photo to upload
+	 * @return a future completed with the photo id (or the ticket id of an async upload)
+	 * @throws FlickrException if the file exceeds the user's limits, or if the quotas can't be read
+	 */
+	public CompletableFuture<String> submit(PhotoUpload photoUpload) throws FlickrException {
+		if (photoUpload == null) throw new FlickrException("Can't upload a photo without PhotoUpload");
+		UploadSource source = photoUpload.getSource();
+		if (source == null) throw new FlickrException("Can't upload a photo from null PhotoUpload.photo");
+		long size = source.getLength();
+		String type = source.getMimeType();
+		boolean video = type != null && type.startsWith("video/");
+
+		boolean load;
+		synchronized (this) {
+			load = !loaded;
+		}
+		if (load) refresh();
+		synchronized (this) {
+			if (shutdown) throw new FlickrException("UploadScheduler is shut down");
+			long max = video ? videosizeMaxBytes : filesizeMaxBytes;
+			if (max > 0 && size > max)
+				throw new FlickrException((video ? "Video" : "Photo")+" too large: "+size+" bytes, max is "+max);
+			if (!unlimited && size > bandwidthMaxBytes)
+				throw new FlickrException("File larger than the whole bandwidth quota: "+size+" bytes");
+			Job job = new Job(photoUpload, size);
+			queue.add(job);
+			// Started here rather than in the constructor, not to publish a half built scheduler
+			if (!started) {
+				started = true;
+				worker.start();
+			}
+			notifyAll();
+			return job.future;
+		}
+	}
+
+	/**
+	 * Whether the scheduler is waiting for more bandwidth.
+	 * @return true if uploads are pending but none fits in the remaining bandwidth
+	 */
+	public synchronized boolean isPaused() {
+		return paused;
+	}
+
+	/**
+	 * Get the remaining bandwidth, as known by the local quota model.
+	 * @return remaining bytes, Long.MAX_VALUE if unlimited
+	 */
+	public synchronized long getRemainingBytes() {
+		return unlimited ? Long.MAX_VALUE : remainingBytes;
+	}
+
+	/**
+	 * Get the number of uploads waiting.
+	 * @return count of queued uploads
+	 */
+	public synchronized int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * Stop the scheduler.  Queued uploads are completed exceptionally, an upload
+	 * in progress is allowed to finish.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			shutdown = true;
+			for (Iterator<Job> it = queue.iterator(); it.hasNext();) {
+				it.next().future.completeExceptionally(new FlickrException("UploadScheduler is shut down"));
+				it.remove();
+			}
+			notifyAll();
+		}
+	}
+
+	private void work() {
+		if (user != null) Auth.setAuthContext(user);
+		while (true) {
+			Job job;
+			try {
+				job = nextJob();
+			} catch (InterruptedException ie) {
+				return;
+			}
+			if (job == null) return;
+			boolean sent = false;
+			try {
+				job.future.complete(Photo.uploadNewPhoto(job.upload));
+				sent = true;
+			} catch (FlickrException fe) {
+				job.future.completeExceptionally(fe);
+			} catch (RuntimeException re) {
+				job.future.completeExceptionally(re);
+			} finally {
+				synchronized (this) {
+					inFlightBytes -= job.size;
+					// Nothing was accounted for by Flickr, give the bytes back
+					if (!sent) remainingBytes += job.size;
+				}
+			}
+		}
+	}
+
+	// Wait for a job fitting in the remaining bandwidth, and reserve its bytes.
+	// Quotas are refreshed out of the lock, not to block the other methods.
+	private Job nextJob() throws InterruptedException {
+		while (true) {
+			synchronized (this) {
+				while (queue.isEmpty() && !shutdown) wait();
+				if (shutdown) return null;
+
+				if (System.currentTimeMillis() - lastRefresh < refreshInterval) {
+					Job job = pickJob();
+					if (job != null) {
+						paused = false;
+						queue.remove(job);
+						inFlightBytes += job.size;
+						if (!unlimited) remainingBytes -= job.size;
+						return job;
+					}
+					// Nothing fits: pause until the next refresh
+					paused = true;
+					wait(Math.max(1, lastRefresh + refreshInterval - System.currentTimeMillis()));
+					continue;
+				}
+			}
+			try {
+				refresh();
+			} catch (FlickrException fe) {
+				// Keep the local model, and try again at the next interval
+				Logger.global.warning("Can't refresh upload status: "+fe.getMessage());
+				synchronized (this) {
+					lastRefresh = System.currentTimeMillis();
+				}
+			}
+		}
+	}
+
+	// Largest job that fits in the remaining bandwidth, first submitted on ties
+	private Job pickJob() {
+		if (unlimited) return queue.isEmpty() ? null : queue.get(0);
+		Job best = null;
+		for (Job job : queue) {
+			if (job.size <= remainingBytes && (best == null || job.size > best.size)) best = job;
+		}
+		return best;
+	}
+
+	// Read the quotas from Flickr, then swap them in under the lock.
+	// Never called holding the lock of the scheduler.
+	private void refresh() throws FlickrException {
+		synchronized (refreshLock) {
+			boolean newUnlimited;
+			long newRemaining, newBandwidthMax, newFilesizeMax, newVideosizeMax;
+			User previous = Auth.getAuthContext();
+			if (user != null) Auth.setAuthContext(user);
+			try {
+				limits.refresh();
+				newUnlimited = limits.isBandwidthUnlimited();
+				newRemaining = limits.getBandwidthRemainingBytes();
+				newBandwidthMax = limits.getBandwidthMaxBytes();
+				newFilesizeMax = limits.getFilesizeMaxBytes();
+				newVideosizeMax = limits.getVideosizeMaxBytes();
+			} finally {
+				if (previous != null) {
+					Auth.setAuthContext(previous);
+				} else {
+					Auth.resetAuthContext();
+				}
+			}
+			synchronized (this) {
+				unlimited = newUnlimited;
+				// Flickr doesn't know yet about the upload in progress
+				remainingBytes = newRemaining - inFlightBytes;
+				bandwidthMaxBytes = newBandwidthMax;
+				filesizeMaxBytes = newFilesizeMax;
+				videosizeMaxBytes = newVideosizeMax;
+				lastRefresh = System.currentTimeMillis();
+				loaded = true;
+				notifyAll();
+			}
+		}
+	}
+}
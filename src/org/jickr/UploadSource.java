@@ -0,0 +1,218 @@
+package org.jickr;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Content of a photo or video to upload, with a length known in advance.
+ *
+ * Flickr uploads are sent with a fixed Content-Length, so every source must
+ * know its exact size before the first byte is written.  Sources backed by a
+ * file, a Path, a byte array or a ByteBuffer can be sent any number of times.
+ * A source backed by an InputStream can only be sent once.
+ *
+ * Example of use:
+ * 	 PhotoUpload upload =
+ * 		PhotoUpload.Builder.fromSource(UploadSource.fromBytes(jpegBytes, "render.jpg")).title("Render").build();
+ *
+ * @see org.jickr.PhotoUpload.Builder#fromSource(UploadSource)
+ */
+public abstract class UploadSource {
+
+	// Size of the chunks written, and of the progress steps
+	static final int chunkSize = 4*1024;
+
+	private final String fileName;
+	private final long length;
+
+	UploadSource(String fileName, long length) {
+		if (fileName == null || fileName.length() == 0) throw new IllegalArgumentException("fileName cannot be null or empty");
+		if (length < 0) throw new IllegalArgumentException("length cannot be negative");
+		this.fileName = fileName;
+		this.length = length;
+	}
+
+	/**
+	 * Upload the content of a file.
+	 * @param file the file to send.  Must exist.
+	 */
+	public static UploadSource fromFile(final File file) {
+		if (file == null) throw new NullPointerException("file cannot be null");
+		if (file.isDirectory()) throw new IllegalArgumentException("File cannot be a directory: "+file);
+		return new UploadSource(file.getName(), file.length()) {
+			File getFile() {
+				return file;
+			}
+			InputStream openStream() throws IOException {
+				return new FileInputStream(file);
+			}
+		};
+	}
+
+	/**
+	 * Upload the content of a file.
+	 * @param path the file to send.  Must exist.
+	 * @throws IOException if the size of the file can't be read
+	 */
+	public static UploadSource fromPath(final Path path) throws IOException {
+		if (path == null) throw new NullPointerException("path cannot be null");
+		return new UploadSource(path.getFileName().toString(), Files.size(path)) {
+			InputStream openStream() throws IOException {
+				return Files.newInputStream(path);
+			}
+		};
+	}
+
+	/**
+	 * Upload an in-memory image.  The array is not copied, and must not be
+	 * modified until the upload is complete.
+	 * @param data the image bytes
+	 * @param fileName name sent to Flickr, also used to guess the content type
+	 */
+	public static UploadSource fromBytes(final byte[] data, String fileName) {
+		if (data == null) throw new NullPointerException("data cannot be null");
+		return new UploadSource(fileName, data.length) {
+			InputStream openStream() {
+				return new ByteArrayInputStream(data);
+			}
+			void writeContent(OutputStream out, RequestProgress progress) throws IOException {
+				for (int off = 0; off < data.length; off += chunkSize) {
+					int len = Math.min(chunkSize, data.length - off);
+					out.write(data, off, len);
+					if (progress != null) progress.advance(len);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Upload the remaining content of a buffer, from its position to its limit.
+	 * The buffer itself is not modified, and must not be until the upload is complete.
+	 * @param buffer the image bytes
+	 * @param fileName name sent to Flickr, also used to guess the content type
+	 */
+	public static UploadSource fromByteBuffer(final ByteBuffer buffer, String fileName) {
+		if (buffer == null) throw new NullPointerException("buffer cannot be null");
+		final ByteBuffer content = buffer.slice();
+		return new UploadSource(fileName, content.remaining()) {
+			InputStream openStream() {
+				final ByteBuffer b = content.duplicate();
+				return new InputStream() {
+					public int read() {
+						return b.hasRemaining() ? b.get() & 0xFF : -1;
+					}
+					public int read(byte[] dst, int off, int len) {
+						if (!b.hasRemaining()) return -1;
+						len = Math.min(len, b.remaining());
+						b.get(dst, off, len);
+						return len;
+					}
+				};
+			}
+			void writeContent(OutputStream out, RequestProgress progress) throws IOException {
+				ByteBuffer b = content.duplicate();
+				byte[] chunk = b.hasArray() ? null : new byte[chunkSize];
+				while (b.hasRemaining()) {
+					int len = Math.min(chunkSize, b.remaining());
+					if (chunk == null) {
+						// Heap buffer: write straight from the backing array
+						out.write(b.array(), b.arrayOffset() + b.position(), len);
+						b.position(b.position() + len);
+					} else {
+						b.get(chunk, 0, len);
+						out.write(chunk, 0, len);
+					}
+					if (progress != null) progress.advance(len);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Upload the content of a stream, for instance relayed from another store.
+	 * Exactly <code>length</code> bytes are read.  The stream is closed once sent,
+	 * and the source can't be sent a second time.
+	 * @param in the stream to read from
+	 * @param length the exact number of bytes to send
+	 * @param fileName name sent to Flickr, also used to guess the content type
+	 */
+	public static UploadSource fromStream(final InputStream in, long length, String fileName) {
+		if (in == null) throw new NullPointerException("stream cannot be null");
+		final AtomicBoolean opened = new AtomicBoolean(false);
+		return new UploadSource(fileName, length) {
+			InputStream openStream() throws IOException {
+				if (!opened.compareAndSet(false, true)) throw new IOException("Stream source already sent: "+getFileName());
+				return in;
+			}
+		};
+	}
+
+	/**
+	 * Get the name of the file sent to Flickr.
+	 * @return file name, without any directory
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Get the exact number of bytes of the content.
+	 * @return length in bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Get the content type, guessed from the file name.
+	 * @return the mime type, null if unknown
+	 */
+	public String getMimeType() {
+		try {
+			return MimeType.getMimeType(fileName);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the file backing this source.
+	 * @return the file, null if the source isn't a java.io.File
+	 */
+	File getFile() {
+		return null;
+	}
+
+	/**
+	 * Open a stream on the content.
+	 */
+	abstract InputStream openStream() throws IOException;
+
+	/**
+	 * Write exactly getLength() bytes to the stream, reporting progress.
+	 */
+	void writeContent(OutputStream out, RequestProgress progress) throws IOException {
+		InputStream in = openStream();
+		try {
+			byte[] buffer = new byte[chunkSize];
+			long left = length;
+			while (left > 0) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+				if (read == -1) throw new IOException("Upload source shorter than its declared length: "+fileName);
+				out.write(buffer, 0, read);
+				left -= read;
+				if (progress != null) progress.advance(read);
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -16,7 +16,10 @@ package org.jickr;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.jdom.Document;
 import org.jdom.Element;
@@ -31,50 +34,148 @@ public class User {
     enum Lookup { USER, EMAIL, NSID }
     
     // Flickr User Name
-    private String username;
+    private volatile String username;
     // Real Name of User
-    private String realname;
+    private volatile String realname;
     // Flickr unique Identifier for user
-    private String nsid;
+    private final String nsid;
     // Freeform text location of user
-    private String location;
-    private URL photosurl;
-    private URL profileurl;
-    private int photocount;
+    private volatile String location;
+    private volatile URL photosurl;
+    private volatile URL profileurl;
+    private volatile int photocount;
+    
+    // Loads the profile, once
+    private final OnceLoader infoLoader = new OnceLoader();
+    
+    // Canonical users, null if not used
+    private static volatile UserCache userCache = null;
     
     /**
-     * Creates a new instance of User
+     * Creates a User known by its NSID, and maybe some fields of a list
+     * response.  The profile is loaded on first access to a field that isn't
+     * known.
      */
-    private User(Lookup type, String search) throws FlickrException {
-        
-        Document doc;
-        Element root;
+    private User(String nsid, String username, String realname) {
+        if (nsid == null) throw new FlickrRuntimeException("NSID cannot be null");
+        this.nsid = nsid;
+        this.username = username;
+        this.realname = realname;
+    }
+    
+    /**
+     * Create a User from the element of a list response, such as a contact,
+     * without calling Flickr.
+     * @param element element with nsid, and optionally username and realname attributes
+     */
+    static User fromElement(Element element) {
+        String nsid = element.getAttributeValue("nsid");
+        String username = element.getAttributeValue("username");
+        String realname = element.getAttributeValue("realname");
+        if (realname != null && realname.length() == 0) realname = null;
+        UserCache cache = userCache;
+        User user = cache == null ? null : cache.get(nsid);
+        if (user == null) {
+            user = new User(nsid, username, realname);
+            if (cache != null) user = cache.put(user);
+        }
+        if (user.username == null) user.username = username;
+        if (user.realname == null) user.realname = realname;
+        return user;
+    }
+    
+    /**
+     * Use a cache of Users, so that looking up the same user again returns the
+     * same instance, without calling Flickr.  Profiles are then as old as the
+     * time to live of the cache.  No cache is used by default.
+     * @param cache the cache, or null to create a new User on every lookup
+     */
+    public static void setUserCache(UserCache cache) {
+        userCache = cache;
+    }
+    
+    // Look up the NSID for a username or email address
+    private static String lookupNSID(Lookup type, String search) throws FlickrException {
         Request req = new Request();
-        
-        if  (!type.equals(Lookup.NSID)) {
-            switch (type) {
-                case USER:
-                    req.setParameter("method","flickr.people.findByUsername");
-                    req.setParameter("username",search);
-                    break;
-                case EMAIL:
-                    req.setParameter("method","flickr.people.findByEmail");
-                    req.setParameter("find_email",search);
-                    break;
+        switch (type) {
+            case USER:
+                req.setParameter("method","flickr.people.findByUsername");
+                req.setParameter("username",search);
+                break;
+            case EMAIL:
+                req.setParameter("method","flickr.people.findByEmail");
+                req.setParameter("find_email",search);
+                break;
+            default:
+                return search;
+        }
+        Document doc = req.getResponse();
+        try {
+            return doc.getRootElement().getChild("user").getAttributeValue("nsid");
+        } catch (NullPointerException npe) {
+            throw new FlickrException("Oddly Formed XML",npe);
+        }
+    }
+    
+    /**
+     * Load the profiles of many users at once, with 8 concurrent calls.
+     * @see org.jickr.User#hydrate(Collection, int, RateLimiter)
+     */
+    public static void hydrate(Collection<User> users) throws FlickrException {
+        hydrate(users, 8, null);
+    }
+    
+    /**
+     * Load the profiles of many users at once, instead of one round trip per
+     * user the first time a profile getter is called.  Users already loaded are
+     * skipped.  Returns once every user is populated.
+     *
+     * @param users The users to load.
+     * @param parallelism Maximum number of concurrent calls to Flickr.
+     * @param limiter Rate limiter shared with other callers, may be null.
+     * @throws FlickrException The first error, once every call is done.
+     */
+    public static void hydrate(Collection<User> users, int parallelism, RateLimiter limiter) throws FlickrException {
+        if (users == null) throw new NullPointerException("users cannot be null");
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final User user : users) {
+            if (user.infoLoader.isDone()) continue;
+            tasks.add(new Callable<Void>() {
+                public Void call() throws FlickrException {
+                    user.checkInfo();
+                    return null;
+                }
+            });
+        }
+        Parallel.invokeAll(tasks, parallelism, limiter);
+    }
+    
+    private void checkInfo() throws FlickrException {
+        if (infoLoader.isDone()) return;
+        infoLoader.load(new OnceLoader.Loader() {
+            public void load() throws FlickrException {
+                loadInfo();
             }
-            doc = req.getResponse();
-            root = doc.getRootElement();
-            nsid = root.getChild("user").getAttributeValue("nsid");
-        } else {
-            nsid = search;
+        });
+    }
+    
+    // Profile getters don't declare FlickrException
+    private void checkInfoUnchecked() {
+        try {
+            checkInfo();
+        } catch (FlickrException ex) {
+            throw new FlickrRuntimeException("Can't load the profile of user "+nsid, ex);
         }
+    }
+    
+    private void loadInfo() throws FlickrException {
         // Now that we have the nsid, we can use it to do a lookup of other data for the user.
-        req = new Request();
+        Request req = new Request();
         req.setParameter("method","flickr.people.getInfo");
         req.setParameter("user_id",nsid);
         
-        doc = req.getResponse();
-        root = doc.getRootElement();
+        Document doc = req.getResponse();
+        Element root = doc.getRootElement();
         
         try {
             username = root.getChild("person").getChildText("username");
@@ -94,35 +195,64 @@ public class User {
     
     /**
      *  Return a new User object that corresponds to the stated username.
+     *  When a user cache is set, a user already looked up by this username is
+     *  returned as cached, with a profile up to the time to live of the cache old.
      *
      * @param username FJickrUsername
      * @throws FlickrException for almost anything, including not found errors
      */
     public static User findByUsername(String username) throws FlickrException {
-        return new User(Lookup.USER, username);
+        UserCache cache = userCache;
+        User user = cache == null ? null : cache.getByUsername(username);
+        if (user != null) return user;
+        user = findByNSID(lookupNSID(Lookup.USER, username));
+        if (cache != null) cache.putUsername(username, user);
+        return user;
     }
     
     /**
      * Return a new User object that corresponds to the stated Email Address.
+     * When a user cache is set, a user already looked up by this address is
+     * returned as cached, with a profile up to the time to live of the cache old.
      *
      * @param emailAddr Email address <code>&qt;user@domain.com&qt;</code>
      * @return user a FUserobject that corresponds to that email address.
      * @throws FlickrException for almost anything, including not found errors
      */
     public static User findByEmail(String emailAddr) throws FlickrException {
-        return new User(Lookup.EMAIL, emailAddr);
+        UserCache cache = userCache;
+        User user = cache == null ? null : cache.getByEmail(emailAddr);
+        if (user != null) return user;
+        user = findByNSID(lookupNSID(Lookup.EMAIL, emailAddr));
+        if (cache != null) cache.putEmail(emailAddr, user);
+        return user;
     }
     
     /**
      * Return a new User object that corresponds to the stated NSID.  An NSID
-     * is a Flickr specific unique identifier.
+     * is a Flickr specific unique identifier.  When a user cache is set and
+     * the user is in it, the cached instance is returned, with a profile up to
+     * the time to live of the cache old.
      *
      * @param nsid Flickr specific identifier
      * @return user a FliUserject that corresponds to that email address.
      * @throws FlickrException for almost anything, including not found errors
      */
     public static User findByNSID(String nsid) throws FlickrException {
-        return new User(Lookup.NSID, nsid);
+        UserCache cache = userCache;
+        User user = cache == null ? null : cache.get(nsid);
+        if (user == null) {
+            user = new User(nsid, null, null);
+            if (cache != null) user = cache.put(user);
+        }
+        try {
+            user.checkInfo();
+        } catch (FlickrException ex) {
+            // Don't keep users that can't be found
+            if (cache != null && !user.infoLoader.isDone()) cache.remove(nsid);
+            throw ex;
+        }
+        return user;
     }
     
     /**
@@ -132,6 +262,7 @@ public class User {
      * @return username Flickr user name
      */
     public String getUserName() {
+        if (username == null) checkInfoUnchecked();
         return username;
     }
     
@@ -142,6 +273,7 @@ public class User {
      * @return realname The user's real name, as listed in Flickr.
      */
     public String getRealName() {
+        if (realname == null) checkInfoUnchecked();
         return realname;
     }
     
@@ -152,6 +284,7 @@ public class User {
      * @return location Location of this user, as listed in Flickr.
      */
     public String getLocation() {
+        checkInfoUnchecked();
         return location;
     }
     
@@ -160,6 +293,7 @@ public class User {
      * @return URL of the user's photos
      */
     public URL getPhotosURL() {
+        checkInfoUnchecked();
         return photosurl;
     }
     
@@ -168,6 +302,7 @@ public class User {
      * @return URL of the user profile
      */
     public URL getProfileURL() {
+        checkInfoUnchecked();
         return profileurl;
     }
     
@@ -177,6 +312,7 @@ public class User {
      *
      */
     public int getPhotoCount() {
+        checkInfoUnchecked();
         return photocount;
     }
     
@@ -191,7 +327,8 @@ public class User {
     
     /**
      * Get a list of users that are contacts for this User.  Only public users are
-     * returned.
+     * returned.  The users are created from the list itself: their profiles
+     * are loaded on first access, or all at once with <code>hydrate</code>.
      * @return userlist A list of FlickrUsers.
      */
     public List<User> getPublicContacts() throws FlickrException {
@@ -208,7 +345,7 @@ public class User {
         List<Element> contacts = root.getChild("contacts").getChildren("contact");
         
         for (Element contact: contacts)  {
-            userlist.add(User.findByNSID(contact.getAttributeValue("nsid")));
+            userlist.add(User.fromElement(contact));
         }
         
         return userlist;
@@ -217,7 +354,8 @@ public class User {
     
     /**
      * Get a list of users that are contacts for the authenticated user.  Requires
-     * READ privlege.
+     * READ privlege.  The users are created from the list itself: their profiles
+     * are loaded on first access, or all at once with <code>hydrate</code>.
      * @return userlist A list of users who are contacts for the authenticated user.
      * @throws FlickrException on any error, including not being authenticated.
      */
@@ -235,7 +373,7 @@ public class User {
         
         List<Element> contacts = root.getChild("contacts").getChildren("contact");
         for (Element contact: contacts) {
-            userlist.add(User.findByNSID(contact.getAttributeValue("nsid")));
+            userlist.add(User.fromElement(contact));
         }
         return userlist;
     }
@@ -252,16 +390,27 @@ public class User {
         return new PhotoList(req);
     }
     
+    /**
+     * Get a list of all public photos for this user, in a compact list.  Unlike
+     * <code>getPublicPhotos()</code>, all the pages are fetched, and the list only
+     * keeps a few bytes per photo: the Photo objects are created on demand.
+     * @return photolist A list of all public photos belonging to this user.
+     * @throws FlickrException in the event of any error.
+     */
+    public List<Photo> getPublicPhotosCompact() throws FlickrException {
+        Request req = new Request();
+        req.setParameter("method","flickr.people.getPublicPhotos");
+        req.setParameter("user_id",nsid);
+        return new CompactPhotoList(req, 0);
+    }
+    
     /**
      * Get a list of all public favorite photos for this user.
      * @return photolist A list of all public favorite photos for this user.
      * @throws FlickrException in the event of any error.
      */
     public List<Photo> getPublicFavoritePhotos() throws FlickrException {
-        Request req = new Request();
-        req.setParameter("method","flickr.favorites.getPublicList");
-        req.setParameter("user_id",nsid);
-        return new PhotoList(req);
+        return getFavorites("flickr.favorites.getPublicList");
     }
     
     /**
@@ -271,10 +420,24 @@ public class User {
      * @throws FlickrException in the event of any error.
      */
     public List<Photo> getFavoritePhotos() throws FlickrException {
+        return getFavorites("flickr.favorites.getList");
+    }
+    
+    private List<Photo> getFavorites(String method) throws FlickrException {
+        ReadCache cache = Flickr.getReadCache();
+        String key = cache == null ? null : ReadCache.key(method, nsid);
+        if (cache != null) {
+            List<Photo> cached = (List<Photo>) cache.get(key);
+            if (cached != null) return cached;
+        }
+        long stamp = cache == null ? 0 : cache.stamp();
+        
         Request req = new Request();
-        req.setParameter("method","flickr.favorites.getList");
+        req.setParameter("method",method);
         req.setParameter("user_id",nsid);
-        return new PhotoList(req);
+        List<Photo> photos = new PhotoList(req);
+        if (cache != null) cache.put(key, photos, stamp, Collections.singletonList(ReadCache.favorites));
+        return photos;
     }
     
     /**
@@ -308,6 +471,13 @@ public class User {
      * @throws FlickrException in the event of any error
      */
     public List<PhotoSet> getPhotoSets() throws FlickrException {
+        ReadCache cache = Flickr.getReadCache();
+        String key = cache == null ? null : ReadCache.key("user.sets", nsid);
+        if (cache != null) {
+            List<PhotoSet> cached = (List<PhotoSet>) cache.get(key);
+            if (cached != null) return new ArrayList<PhotoSet>(cached);
+        }
+        long stamp = cache == null ? 0 : cache.stamp();
         
         Request req = new Request();
         req.setParameter("method","flickr.photosets.getList");
@@ -318,27 +488,48 @@ public class User {
         List tempList = new ArrayList();
         
         List<Element> photosets = root.getChild("photosets").getChildren("photoset");
+        List<String> dependencies = new ArrayList<String>();
+        dependencies.add(ReadCache.sets);
         for (Element photoset : photosets)  {
-            tempList.add(new PhotoSet(photoset));
+            PhotoSet set = new PhotoSet(photoset);
+            tempList.add(set);
+            dependencies.addAll(set.dependencies());
         }
+        if (cache != null) cache.put(key, new ArrayList<PhotoSet>(tempList), stamp, dependencies);
         return tempList;
     }
     
     /**
-     * Get a list of the Collections for this user.
+     * Get a list of the Collections for this user.  The whole tree comes from
+     * a single call: the info of each set is loaded on first access.
      * @return collectionlist A list of all Collections for this user
      * @throws FlickrException in the event of any error
      */
     public List<PhotoCollection> getCollections() throws FlickrException {
-        return getCollections(true);
+        return getCollections(false);
     }
     
     /**
      * Get a list of the Collections for this user.
+     * @param fetchSets also load the info of every set now, with 8 concurrent calls
      * @return collectionlist A list of all Collections for this user
      * @throws FlickrException in the event of any error
      */
     public List<PhotoCollection> getCollections(boolean fetchSets) throws FlickrException {
+        ReadCache cache = Flickr.getReadCache();
+        String key = cache == null ? null : ReadCache.key("user.collections", nsid);
+        List<PhotoCollection> cached = cache == null ? null : (List<PhotoCollection>) cache.get(key);
+        if (cached != null) {
+            if (fetchSets) {
+                List<PhotoSet> sets = new ArrayList<PhotoSet>();
+                for (PhotoCollection tree : cached) {
+                    sets.addAll(tree.getAllPhotosets());
+                }
+                PhotoSet.hydrate(sets, 8, null);
+            }
+            return new ArrayList<PhotoCollection>(cached);
+        }
+        long stamp = cache == null ? 0 : cache.stamp();
         
         Request req = new Request();
         req.setParameter("method","flickr.collections.getTree");
@@ -349,9 +540,23 @@ public class User {
         List tempList = new ArrayList();
         
         List<Element> collections = root.getChild("collections").getChildren("collection");
+        List<PhotoSet> sets = new ArrayList<PhotoSet>();
         for (Element collection : collections)  {
-            tempList.add(new PhotoCollection(collection, fetchSets));
+            PhotoCollection tree = new PhotoCollection(collection, false);
+            tempList.add(tree);
+            sets.addAll(tree.getAllPhotosets());
+        }
+        if (cache != null) {
+            // Set titles and photo counts are part of the trees
+            List<String> dependencies = new ArrayList<String>();
+            dependencies.add(ReadCache.collections);
+            for (PhotoSet set : sets) {
+                dependencies.addAll(set.dependencies());
+            }
+            cache.put(key, new ArrayList<PhotoCollection>(tempList), stamp, dependencies);
         }
+        // A single pass for the sets of every collection
+        if (fetchSets) PhotoSet.hydrate(sets, 8, null);
         return tempList;
     }
     
@@ -0,0 +1,228 @@
+package org.jickr;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of Users, by NSID, with the usernames and email addresses already
+ * looked up.
+ *
+ * While a user is cached, every lookup of its NSID, username or email address
+ * returns the same User instance, without calling Flickr: contact lists,
+ * tokens, comments and the default authenticated user all share it, and its
+ * profile is only loaded once.  Users expire after the time to live, and the
+ * least recently used ones are dropped beyond the maximum number of users.
+ *
+ * No cache is used by default: profiles are then always fresh, but every
+ * lookup creates a new User.
+ *
+ * Example of use:
+ * 	 User.setUserCache(new UserCache(24 * 60 * 60 * 1000L, 50000));
+ *
+ * @see org.jickr.User#setUserCache(UserCache)
+ */
+public class UserCache {
+
+	// A cached user, and the keys of its indexes
+	private static final class Entry {
+		final User user;
+		final long expires;
+		String username;
+		String email;
+
+		Entry(User user, long expires) {
+			this.user = user;
+			this.expires = expires;
+		}
+	}
+
+	private final long ttl;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	// All guarded by users
+	private final HashMap<String,Entry> byUsername = new HashMap<String,Entry>();
+	private final HashMap<String,Entry> byEmail = new HashMap<String,Entry>();
+	// By NSID, access ordered
+	private final LinkedHashMap<String,Entry> users;
+
+	/**
+	 * Creates a cache.
+	 * @param ttlMillis time to live of a user
+	 * @param maxUsers maximum number of users kept
+	 */
+	public UserCache(long ttlMillis, final int maxUsers) {
+		if (ttlMillis <= 0) throw new IllegalArgumentException("ttlMillis must be positive");
+		if (maxUsers <= 0) throw new IllegalArgumentException("maxUsers must be positive");
+		this.ttl = ttlMillis;
+		this.users = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+				if (size() <= maxUsers) return false;
+				removeAliases(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Drop every cached user.
+	 */
+	public void clear() {
+		synchronized (users) {
+			users.clear();
+			byUsername.clear();
+			byEmail.clear();
+		}
+	}
+
+	/**
+	 * Drop the expired users.  They are otherwise dropped when looked up, or
+	 * when the cache is full.
+	 */
+	public void purge() {
+		long now = System.currentTimeMillis();
+		synchronized (users) {
+			for (Iterator<Entry> it = users.values().iterator(); it.hasNext();) {
+				Entry entry = it.next();
+				if (entry.expires <= now) {
+					removeAliases(entry);
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop a user, to get a fresh profile on the next lookup.
+	 * @param nsid NSID of the user
+	 */
+	public void remove(String nsid) {
+		synchronized (users) {
+			Entry entry = users.remove(nsid);
+			if (entry != null) removeAliases(entry);
+		}
+	}
+
+	/**
+	 * Get the number of cached users.
+	 */
+	public int size() {
+		synchronized (users) {
+			return users.size();
+		}
+	}
+
+	/**
+	 * Get the number of lookups served from the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of lookups that weren't cached.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get a cached user by NSID.
+	 * @return the user, null if not cached or expired
+	 */
+	User get(String nsid) {
+		synchronized (users) {
+			return count(live(users.get(nsid)));
+		}
+	}
+
+	/**
+	 * Get a cached user by username, as it was looked up.
+	 * @return the user, null if not cached or expired
+	 */
+	User getByUsername(String username) {
+		synchronized (users) {
+			return count(live(byUsername.get(normalize(username))));
+		}
+	}
+
+	/**
+	 * Get a cached user by email address, as it was looked up.
+	 * @return the user, null if not cached or expired
+	 */
+	User getByEmail(String email) {
+		synchronized (users) {
+			return count(live(byEmail.get(normalize(email))));
+		}
+	}
+
+	/**
+	 * Cache a user, unless another instance with the same NSID is already cached.
+	 * @return the canonical user: the cached one, or the one given
+	 */
+	User put(User user) {
+		synchronized (users) {
+			Entry entry = live(users.get(user.getNSID()));
+			if (entry != null) return entry.user;
+			users.put(user.getNSID(), new Entry(user, System.currentTimeMillis() + ttl));
+			return user;
+		}
+	}
+
+	/**
+	 * Record the username a cached user was looked up with.
+	 */
+	void putUsername(String username, User user) {
+		synchronized (users) {
+			Entry entry = users.get(user.getNSID());
+			if (entry == null || entry.user != user) return;
+			if (entry.username != null) byUsername.remove(entry.username);
+			entry.username = normalize(username);
+			byUsername.put(entry.username, entry);
+		}
+	}
+
+	/**
+	 * Record the email address a cached user was looked up with.
+	 */
+	void putEmail(String email, User user) {
+		synchronized (users) {
+			Entry entry = users.get(user.getNSID());
+			if (entry == null || entry.user != user) return;
+			if (entry.email != null) byEmail.remove(entry.email);
+			entry.email = normalize(email);
+			byEmail.put(entry.email, entry);
+		}
+	}
+
+	// The entry if not expired.  Expired ones are dropped.
+	private Entry live(Entry entry) {
+		if (entry == null) return null;
+		if (entry.expires > System.currentTimeMillis()) return entry;
+		users.remove(entry.user.getNSID());
+		removeAliases(entry);
+		return null;
+	}
+
+	private User count(Entry entry) {
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.user;
+	}
+
+	private void removeAliases(Entry entry) {
+		if (entry.username != null && byUsername.get(entry.username) == entry) byUsername.remove(entry.username);
+		if (entry.email != null && byEmail.get(entry.email) == entry) byEmail.remove(entry.email);
+	}
+
+	// Flickr usernames and email addresses don't depend on case
+	private static String normalize(String key) {
+		return key.trim().toLowerCase();
+	}
+}
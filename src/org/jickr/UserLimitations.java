@@ -11,26 +11,61 @@ import org.jdom.Element;
  */
 public class UserLimitations {
 
-	// User element
-	private boolean pro;
-	// Bandwidth element
-	private long bandwidthMaxBytes;
-	private long bandwidthUsedBytes;
-	private long bandwidthRemainingBytes;
-	private boolean bandwidthUnlimited;
-	// Filesize element
-	private long filesizeMaxBytes;
-	// Sets element
-	private String setsCreated;
-	private String setsRemaining;
-	// Videosize element
-	private long videosizeMaxBytes;
-	// Videos element
-	private int videosUploaded;
-	private String videosRemaining;
-	
-	private boolean gotInfos=false;
-	
+	// Values of one flickr.people.getUploadStatus response, never modified once built
+	private static final class Status {
+		// User element
+		final boolean pro;
+		// Bandwidth element
+		final long bandwidthMaxBytes;
+		final long bandwidthUsedBytes;
+		final long bandwidthRemainingBytes;
+		final boolean bandwidthUnlimited;
+		// Filesize element
+		final long filesizeMaxBytes;
+		// Sets element
+		final String setsCreated;
+		final String setsRemaining;
+		// Videosize element
+		final long videosizeMaxBytes;
+		// Videos element
+		final int videosUploaded;
+		final String videosRemaining;
+
+		Status(Element user) {
+			this.pro = "1".equals(user.getAttributeValue("ispro"));
+
+			Element bandwidth = user.getChild("bandwidth");
+			this.bandwidthMaxBytes = Long.parseLong(bandwidth
+					.getAttributeValue("maxbytes"));
+			this.bandwidthUsedBytes = Long.parseLong(bandwidth
+					.getAttributeValue("usedbytes"));
+			this.bandwidthRemainingBytes = Long.parseLong(bandwidth
+					.getAttributeValue("remainingbytes"));
+			this.bandwidthUnlimited = "1".equals(bandwidth
+					.getAttributeValue("unlimited"));
+
+			Element filesize = user.getChild("filesize");
+			this.filesizeMaxBytes = Long.parseLong(filesize
+					.getAttributeValue("maxbytes"));
+
+			Element sets = user.getChild("sets");
+			this.setsCreated = sets.getAttributeValue("created");
+			this.setsRemaining = sets.getAttributeValue("remaining");
+
+			Element videosize = user.getChild("videosize");
+			this.videosizeMaxBytes = Long.parseLong(videosize
+					.getAttributeValue("maxbytes"));
+
+			Element videos = user.getChild("videos");
+			this.videosUploaded = Integer.parseInt(videos
+					.getAttributeValue("uploaded"));
+			this.videosRemaining = sets.getAttributeValue("remaining");
+		}
+	}
+
+	// Latest snapshot, replaced as a whole so readers never see a partial update
+	private volatile Status status = null;
+	private final OnceLoader loader = new OnceLoader();
 
 	// Get upload statuts : bandwith max, photo/video sizes max, ...
 	private void getUploadStatus() throws FlickrException {
@@ -45,37 +80,28 @@ public class UserLimitations {
 
 		root = doc.getRootElement();
 
-		Element user = root.getChild("user");
-		this.pro = "1".equals(user.getAttributeValue("ispro"));
-
-		Element bandwidth = user.getChild("bandwidth");
-		this.bandwidthMaxBytes = Long.parseLong(bandwidth
-				.getAttributeValue("maxbytes"));
-		this.bandwidthUsedBytes = Long.parseLong(bandwidth
-				.getAttributeValue("usedbytes"));
-		this.bandwidthRemainingBytes = Long.parseLong(bandwidth
-				.getAttributeValue("remainingbytes"));
-		this.bandwidthUnlimited = "1".equals(bandwidth
-				.getAttributeValue("unlimited"));
-
-		Element filesize = user.getChild("filesize");
-		this.filesizeMaxBytes = Long.parseLong(filesize
-				.getAttributeValue("maxbytes"));
-
-		Element sets = user.getChild("sets");
-		this.setsCreated = sets.getAttributeValue("created");
-		this.setsRemaining = sets.getAttributeValue("remaining");
-
-		Element videosize = user.getChild("videosize");
-		this.videosizeMaxBytes = Long.parseLong(videosize
-				.getAttributeValue("maxbytes"));
+		this.status = new Status(root.getChild("user"));
+	}
 
-		Element videos = user.getChild("videos");
-		this.videosUploaded = Integer.parseInt(videos
-				.getAttributeValue("uploaded"));
-		this.videosRemaining = sets.getAttributeValue("remaining");
-		this.gotInfos = true;
+	// The current snapshot, fetched on first use
+	private Status getStatus() throws FlickrException {
+		Status current = status;
+		if (current != null) return current;
+		loader.load(new OnceLoader.Loader() {
+			public void load() throws FlickrException {
+				if (status == null) getUploadStatus();
+			}
+		});
+		return status;
+	}
 
+	/**
+	 * Fetch the upload status again from Flickr, discarding the values already read.
+	 * 
+	 * @throws FlickrException on any error
+	 */
+	public void refresh() throws FlickrException {
+		getUploadStatus();
 	}
 
 	public String showUsageAndLimitations() throws FlickrException{
@@ -98,38 +124,31 @@ public class UserLimitations {
 	}
 	
 	public boolean isPro() throws FlickrException {
-		if (!gotInfos) getUploadStatus();
-		return pro;
+		return getStatus().pro;
 	}
 
 	public long getBandwidthMaxBytes() throws FlickrException {
-		if (!gotInfos) getUploadStatus();
-		return bandwidthMaxBytes;
+		return getStatus().bandwidthMaxBytes;
 	}
 
 	public long getBandwidthUsedBytes() throws FlickrException {
-		if (!gotInfos) getUploadStatus();
-		return bandwidthUsedBytes;
+		return getStatus().bandwidthUsedBytes;
 	}
 
 	public long getBandwidthRemainingBytes() throws FlickrException {
-		if (!gotInfos) getUploadStatus();
-		return bandwidthRemainingBytes;
+		return getStatus().bandwidthRemainingBytes;
 	}
 
 	public boolean isBandwidthUnlimited() throws FlickrException {
-		if (!gotInfos) getUploadStatus();
-		return bandwidthUnlimited;
+		return getStatus().bandwidthUnlimited;
 	}
 
 	public long getFilesizeMaxBytes() throws FlickrException {
-		if (!gotInfos) getUploadStatus();
-		return filesizeMaxBytes;
+		return getStatus().filesizeMaxBytes;
 	}
 
 	public String getSetsCreated() throws FlickrException {
-		if (!gotInfos) getUploadStatus();
-		return setsCreated;
+		return getStatus().setsCreated;
 	}
 
 	/**
@@ -137,23 +156,19 @@ public class UserLimitations {
 	 */
 	@Deprecated
 	public String getSetsRemaining() throws FlickrException {
-		if (!gotInfos) getUploadStatus();
-		return setsRemaining;
+		return getStatus().setsRemaining;
 	}
 
 	public long getVideosizeMaxBytes() throws FlickrException {
-		if (!gotInfos) getUploadStatus();
-		return videosizeMaxBytes;
+		return getStatus().videosizeMaxBytes;
 	}
 
 	public int getVideosUploaded() throws FlickrException {
-		if (!gotInfos) getUploadStatus();
-		return videosUploaded;
+		return getStatus().videosUploaded;
 	}
 
 	public String getVideosRemaining() throws FlickrException {
-		if (!gotInfos) getUploadStatus();
-		return videosRemaining;
+		return getStatus().videosRemaining;
 	}
 	
 }